@@ -0,0 +1,557 @@
+package com.arca.envoy.example;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jpos.BaseJposControl;
+import jpos.BillDispenser;
+import jpos.BillDispenserConst;
+import jpos.CoinAcceptor;
+import jpos.CoinAcceptorConst;
+import jpos.ItemDispenser;
+import jpos.JposConst;
+import jpos.JposException;
+import jpos.events.DataEvent;
+import jpos.events.DataListener;
+import jpos.events.ErrorEvent;
+import jpos.events.ErrorListener;
+import jpos.events.OutputCompleteEvent;
+import jpos.events.OutputCompleteListener;
+import jpos.events.StatusUpdateEvent;
+import jpos.events.StatusUpdateListener;
+
+import com.arca.envoy.javapos.Init;
+import com.arca.envoy.javapos.Inventory;
+
+/**
+ * AsyncJavaPOS.
+ *
+ * This example demonstrates asynchronous operation of the JavaPOS coin
+ * acceptor, bill dispenser and item dispenser services. JetsortJavaPOS blocks
+ * inside beginDeposit(), fixDeposit() and endDeposit(), and RCDJavaPOS blocks
+ * inside each dispenseItem(). The adapters in this example give those
+ * services the UPOS asynchronous-mode behavior, so a POS application can
+ * carry on with its own UI and business logic:
+ *
+ *  - Each operation is queued on the device's own output thread and returns
+ *    an output ID immediately; queued operations run strictly in order
+ *  - Completion is reported with an OutputCompleteEvent, and for the bill
+ *    dispenser also with a StatusUpdateEvent of BDSP_STATUS_ASYNC and the
+ *    AsyncResultCode, as UPOS specifies for dispenseCash()
+ *  - A completed deposit is reported with a DataEvent carrying the deposit
+ *    amount and a StatusUpdateEvent of CACC_STATUS_DEPOSIT_END
+ *  - A failed operation is reported with an ErrorEvent at the output locus,
+ *    and the remaining queued operations are discarded
+ *  - clearOutput() discards all operations that have not started yet
+ *  - Events are delivered on a separate event thread, and DataEvents are
+ *    held while DataEventEnabled is false; as in UPOS, delivering one sets
+ *    DataEventEnabled to false again, so each enable releases one held event
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered Jetsort named 'JETSORT', a registered F53 named 'FUJITSU_F53'
+ *    and a registered RCD named 'RCD'.
+ *
+ * See README for compilation and running instructions.
+ */
+public class AsyncJavaPOS {
+
+    private static final long OPERATIONS_TIMEOUT_S = 60;
+
+    /**
+     * A device operation run on the output thread.
+     */
+    private interface Operation {
+        /**
+         * Runs the operation.
+         *
+         * @param outputId - The output ID assigned to the operation.
+         * @throws JposException - If the device reports an error.
+         */
+        void run(int outputId) throws JposException;
+    }
+
+    /**
+     * Asynchronous output and event delivery shared by the device adapters.
+     *
+     * @param <C> - The control type.
+     */
+    public abstract static class AsyncDevice<C extends BaseJposControl> {
+
+        private final C control;
+        private final ExecutorService output = Executors.newSingleThreadExecutor();
+        private final ExecutorService events = Executors.newSingleThreadExecutor();
+        private final AtomicInteger outputIds = new AtomicInteger();
+        private final Map<Integer, Future<?>> pending = new ConcurrentHashMap<Integer, Future<?>>();
+
+        private final List<StatusUpdateListener> statusListeners = new CopyOnWriteArrayList<StatusUpdateListener>();
+        private final List<DataListener> dataListeners = new CopyOnWriteArrayList<DataListener>();
+        private final List<OutputCompleteListener> outputListeners = new CopyOnWriteArrayList<OutputCompleteListener>();
+        private final List<ErrorListener> errorListeners = new CopyOnWriteArrayList<ErrorListener>();
+
+        private final Queue<DataEvent> heldData = new ArrayDeque<DataEvent>();
+        private boolean dataEventEnabled;
+
+        /**
+         * Wraps an opened and claimed control, enabled where the service supports it.
+         *
+         * @param control - The device control.
+         */
+        protected AsyncDevice(C control) {
+            this.control = control;
+        }
+
+        /**
+         * Gets the wrapped control, for synchronous properties and methods.
+         *
+         * @return The device control.
+         */
+        public C getControl() {
+            return control;
+        }
+
+        /**
+         * Adds a StatusUpdateEvent listener.
+         *
+         * @param listener - The listener.
+         */
+        public void addStatusUpdateListener(StatusUpdateListener listener) {
+            statusListeners.add(listener);
+        }
+
+        /**
+         * Adds a DataEvent listener.
+         *
+         * @param listener - The listener.
+         */
+        public void addDataListener(DataListener listener) {
+            dataListeners.add(listener);
+        }
+
+        /**
+         * Adds an OutputCompleteEvent listener.
+         *
+         * @param listener - The listener.
+         */
+        public void addOutputCompleteListener(OutputCompleteListener listener) {
+            outputListeners.add(listener);
+        }
+
+        /**
+         * Adds an ErrorEvent listener.
+         *
+         * @param listener - The listener.
+         */
+        public void addErrorListener(ErrorListener listener) {
+            errorListeners.add(listener);
+        }
+
+        /**
+         * Sets DataEventEnabled. Enabling delivers the oldest DataEvent held while
+         * disabled, if any, which disables data events again.
+         *
+         * @param enabled - The new DataEventEnabled value.
+         */
+        public void setDataEventEnabled(boolean enabled) {
+            synchronized (heldData) {
+                dataEventEnabled = enabled;
+                if (!enabled) {
+                    return;
+                }
+                if (!heldData.isEmpty()) {
+                    deliverData(heldData.poll());
+                }
+            }
+        }
+
+        /**
+         * Discards every queued operation that has not started yet.
+         */
+        public void clearOutput() {
+            Iterator<Future<?>> queued = pending.values().iterator();
+            while (queued.hasNext()) {
+                queued.next().cancel(false);
+                queued.remove();
+            }
+        }
+
+        /**
+         * Stops the output and event threads. Operations already started complete.
+         */
+        public void shutdown() {
+            clearOutput();
+            output.shutdown();
+            events.shutdown();
+        }
+
+        /**
+         * Queues an operation.
+         *
+         * @param operation - The operation.
+         * @return The output ID reported in the completion events.
+         */
+        int enqueue(final Operation operation) {
+            final int outputId = outputIds.incrementAndGet();
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        operation.run(outputId);
+                        completed(outputId);
+                    } catch (JposException e) {
+                        // UPOS clears the remaining output after an output error.
+                        clearOutput();
+                        postError(e);
+                    } finally {
+                        pending.remove(outputId);
+                    }
+                }
+            }, null);
+
+            // Registered before it can run, so its own removal always comes after.
+            pending.put(outputId, task);
+            output.execute(task);
+            return outputId;
+        }
+
+        /**
+         * Reports a completed operation. Subclasses may add device-specific events.
+         *
+         * @param outputId - The output ID of the operation.
+         */
+        void completed(int outputId) {
+            postOutputComplete(outputId);
+        }
+
+        void postStatus(int status) {
+            final StatusUpdateEvent event = new StatusUpdateEvent(control, status);
+            events.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (StatusUpdateListener listener : statusListeners) {
+                        listener.statusUpdateOccurred(event);
+                    }
+                }
+            });
+        }
+
+        void postData(int status) {
+            DataEvent event = new DataEvent(control, status);
+            synchronized (heldData) {
+                if (dataEventEnabled) {
+                    deliverData(event);
+                } else {
+                    heldData.add(event);
+                }
+            }
+        }
+
+        private void deliverData(final DataEvent event) {
+            // UPOS disables data events once one has been delivered.
+            dataEventEnabled = false;
+            events.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (DataListener listener : dataListeners) {
+                        listener.dataOccurred(event);
+                    }
+                }
+            });
+        }
+
+        void postOutputComplete(int outputId) {
+            final OutputCompleteEvent event = new OutputCompleteEvent(control, outputId);
+            events.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (OutputCompleteListener listener : outputListeners) {
+                        listener.outputCompleteOccurred(event);
+                    }
+                }
+            });
+        }
+
+        void postError(JposException e) {
+            final ErrorEvent event = new ErrorEvent(control, e.getErrorCode(), e.getErrorCodeExtended(),
+                    JposConst.JPOS_EL_OUTPUT, JposConst.JPOS_ER_CLEAR);
+            events.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (ErrorListener listener : errorListeners) {
+                        listener.errorOccurred(event);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * An asynchronous coin acceptor.
+     */
+    public static final class AsyncCoinAcceptor extends AsyncDevice<CoinAcceptor> {
+
+        /**
+         * Wraps an opened, claimed and enabled coin acceptor.
+         *
+         * @param control - The coin acceptor control.
+         */
+        public AsyncCoinAcceptor(CoinAcceptor control) {
+            super(control);
+        }
+
+        /**
+         * Queues a complete deposit: beginDeposit(), fixDeposit() and endDeposit().
+         * <p>
+         * On completion a DataEvent carries the deposit amount, followed by a
+         * StatusUpdateEvent of CACC_STATUS_DEPOSIT_END and an OutputCompleteEvent.
+         * The counts are then available from getDepositCounts().
+         *
+         * @param success - The endDeposit() argument, such as CACC_DEPOSIT_COMPLETE.
+         * @return The output ID.
+         */
+        public int deposit(final int success) {
+            return enqueue(new Operation() {
+                @Override
+                public void run(int outputId) throws JposException {
+                    getControl().beginDeposit();
+                    getControl().fixDeposit();
+                    getControl().endDeposit(success);
+                    postData(getControl().getDepositAmount());
+                    postStatus(CoinAcceptorConst.CACC_STATUS_DEPOSIT_END);
+                }
+            });
+        }
+    }
+
+    /**
+     * An asynchronous bill dispenser.
+     */
+    public static final class AsyncBillDispenser extends AsyncDevice<BillDispenser> {
+
+        private volatile int asyncResultCode;
+        private volatile int asyncResultCodeExtended;
+
+        /**
+         * Wraps an opened, claimed and enabled bill dispenser.
+         *
+         * @param control - The bill dispenser control.
+         */
+        public AsyncBillDispenser(BillDispenser control) {
+            super(control);
+        }
+
+        /**
+         * Queues dispenseCash(). The F53 service implements dispenseCash(), not dispenseChange().
+         * <p>
+         * On completion, successful or not, AsyncResultCode is set and a
+         * StatusUpdateEvent of BDSP_STATUS_ASYNC is delivered.
+         *
+         * @param cashCounts - The notes to dispense, as "value:count" pairs separated by commas.
+         * @return The output ID.
+         */
+        public int dispenseCash(final String cashCounts) {
+            return enqueue(new Operation() {
+                @Override
+                public void run(int outputId) throws JposException {
+                    try {
+                        getControl().dispenseCash(cashCounts);
+                        asyncResultCode = JposConst.JPOS_SUCCESS;
+                        asyncResultCodeExtended = 0;
+                    } catch (JposException e) {
+                        asyncResultCode = e.getErrorCode();
+                        asyncResultCodeExtended = e.getErrorCodeExtended();
+                        throw e;
+                    } finally {
+                        postStatus(BillDispenserConst.BDSP_STATUS_ASYNC);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Gets the result of the last completed dispenseCash().
+         *
+         * @return JPOS_SUCCESS or the error code.
+         */
+        public int getAsyncResultCode() {
+            return asyncResultCode;
+        }
+
+        /**
+         * Gets the extended result of the last completed dispenseCash().
+         *
+         * @return The extended error code.
+         */
+        public int getAsyncResultCodeExtended() {
+            return asyncResultCodeExtended;
+        }
+    }
+
+    /**
+     * An asynchronous item dispenser.
+     */
+    public static final class AsyncItemDispenser extends AsyncDevice<ItemDispenser> {
+
+        private final Map<Integer, Integer> dispensed = new ConcurrentHashMap<Integer, Integer>();
+
+        /**
+         * Wraps an opened and claimed item dispenser; the RCD service does not implement setDeviceEnabled().
+         *
+         * @param control - The item dispenser control.
+         */
+        public AsyncItemDispenser(ItemDispenser control) {
+            super(control);
+        }
+
+        /**
+         * Queues dispenseItem() for one slot.
+         *
+         * @param count - The number of items to dispense.
+         * @param slot - The slot to dispense from.
+         * @return The output ID; the dispensed count is available from getDispensed() once it completes.
+         */
+        public int dispenseItem(final int count, final int slot) {
+            final int[] counts = new int[] {count};
+            return enqueue(new Operation() {
+                @Override
+                public void run(int outputId) throws JposException {
+                    getControl().dispenseItem(counts, slot);
+                    dispensed.put(outputId, counts[0]);
+                }
+            });
+        }
+
+        /**
+         * Gets and forgets the number of items dispensed by a completed operation.
+         *
+         * @param outputId - The output ID returned by dispenseItem().
+         * @return The number of items dispensed, or -1 if the operation has not completed successfully.
+         */
+        public int getDispensed(int outputId) {
+            Integer count = dispensed.remove(outputId);
+            return count == null ? -1 : count;
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        // Initialize JavaPOS
+        Init.setup(System.getProperty("java.io.tmpdir"));
+
+        CoinAcceptor cas = new CoinAcceptor();
+        BillDispenser bds = new BillDispenser();
+        ItemDispenser ids = new ItemDispenser();
+
+        try {
+            cas.open("JETSORT");
+            cas.claim(0);
+            cas.setDeviceEnabled(true);
+            bds.open("FUJITSU_F53");
+            bds.claim(0);
+            bds.setDeviceEnabled(true);
+            ids.open("RCD");
+            ids.claim(0);
+
+            final AsyncCoinAcceptor coins = new AsyncCoinAcceptor(cas);
+            final AsyncBillDispenser bills = new AsyncBillDispenser(bds);
+            final AsyncItemDispenser rolls = new AsyncItemDispenser(ids);
+            final CountDownLatch done = new CountDownLatch(4);
+
+            coins.addDataListener(new DataListener() {
+                @Override
+                public void dataOccurred(DataEvent e) {
+                    System.out.println("Deposit complete, amount: " + e.getStatus());
+                    try {
+                        Inventory inventory = new Inventory(coins.getControl().getDepositCounts());
+                        for (int denom : inventory.getDenomList()) {
+                            System.out.println("\tDenomination " + denom + ": " + inventory.getCount(denom));
+                        }
+                    } catch (JposException ex) {
+                        ex.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            });
+            bills.addStatusUpdateListener(new StatusUpdateListener() {
+                @Override
+                public void statusUpdateOccurred(StatusUpdateEvent e) {
+                    if (e.getStatus() == BillDispenserConst.BDSP_STATUS_ASYNC) {
+                        System.out.println("Cash dispensed, result: " + bills.getAsyncResultCode());
+                        done.countDown();
+                    }
+                }
+            });
+            rolls.addOutputCompleteListener(new OutputCompleteListener() {
+                @Override
+                public void outputCompleteOccurred(OutputCompleteEvent e) {
+                    System.out.println("Dispense " + e.getOutputID() + " complete, rolls: " + rolls.getDispensed(e.getOutputID()));
+                    done.countDown();
+                }
+            });
+            ErrorListener errors = new ErrorListener() {
+                @Override
+                public void errorOccurred(ErrorEvent e) {
+                    System.out.println("Device error: " + e.getErrorCode());
+                    done.countDown();
+                }
+            };
+            coins.addErrorListener(errors);
+            rolls.addErrorListener(errors);
+
+            // The bill dispenser reports errors through BDSP_STATUS_ASYNC as well; count them once.
+            bills.addErrorListener(new ErrorListener() {
+                @Override
+                public void errorOccurred(ErrorEvent e) {
+                    System.out.println("Device error: " + e.getErrorCode());
+                }
+            });
+
+            // Start the deposit and three dispenses; none of these calls block.
+            coins.setDataEventEnabled(true);
+            coins.deposit(CoinAcceptorConst.CACC_DEPOSIT_COMPLETE);
+            bills.dispenseCash("5:1");
+            rolls.dispenseItem(1, 1);
+            rolls.dispenseItem(1, 2);
+            System.out.println("Deposit and dispenses queued; the application is free to continue.");
+
+            // An error clears the device's remaining operations, which then report nothing.
+            if (!done.await(OPERATIONS_TIMEOUT_S, TimeUnit.SECONDS)) {
+                System.out.println("Some operations were discarded after an error.");
+            }
+
+            coins.shutdown();
+            bills.shutdown();
+            rolls.shutdown();
+            cas.release();
+            cas.close();
+            bds.release();
+            bds.close();
+            ids.release();
+            ids.close();
+
+            System.exit(0);
+        } catch (JposException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
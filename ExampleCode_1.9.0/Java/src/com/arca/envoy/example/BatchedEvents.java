@@ -0,0 +1,458 @@
+package com.arca.envoy.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+
+/**
+ * BatchedEvents.
+ *
+ * This example demonstrates delivering Envoy events to an application in
+ * sequenced batches. Each event reaches an IEnvoyEventHandler as its own
+ * remote callback, and the service waits for the handler to return before
+ * sending the next one; during a bulk Jetsort or CSeXtra deposit a slow
+ * handler holds up every event behind it. If the client loses its
+ * connection, events such as STACKED or NOTE_RETRIEVED fired in the
+ * meantime are never seen, and nothing tells the application so.
+ *
+ * The batcher in this example:
+ *
+ *  - Returns from every callback immediately, after queuing the event
+ *  - Delivers events to the application in batches, flushed when a batch
+ *    reaches its maximum size or when a short time window has passed
+ *  - Numbers each device's events consecutively; the last number of every
+ *    device is saved once the application has handled its batch, so the
+ *    numbering continues across restarts
+ *  - Watches the connection to the Envoy service; after an outage it
+ *    registers a new listener and reports a gap for every known device,
+ *    with the last number the application acknowledged, so the application
+ *    can reconcile (for example by reading the device's counts) instead of
+ *    silently missing events
+ *
+ * Gaps are reported in order with the batches, so a gap always follows the
+ * last batch received before the outage.
+ *
+ * The Envoy service does not number its events, so the sequence numbers are
+ * assigned here, as the events are received. They show the order in which
+ * the application saw the events, and which it has acknowledged; they can
+ * never show a gap, since an event that was never received is never
+ * numbered. Missed events are detected only from the connection: an outage
+ * reported by the watchdog, or a restart of the application. Because events
+ * may have been missed while the application was not running, a gap is
+ * reported for every device known from the state file on every start,
+ * whether or not anything was actually missed.
+ *
+ * Before a new listener is registered, the old one is unexported and its
+ * handler is switched off, so a registration that survived the outage can
+ * never deliver events a second time.
+ *
+ * The connection is checked every WATCHDOG_MS. An outage that starts and
+ * ends between two checks is never noticed, so events missed during it are
+ * not reported as a gap.
+ *
+ * Usage:
+ *
+ *   BatchedEvents [state-file]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *
+ * See README for compilation and running instructions.
+ */
+public class BatchedEvents implements IEnvoyEventHandler {
+
+    private static final int DEFAULT_MAX_BATCH = 64;
+    private static final long DEFAULT_WINDOW_MS = 20;
+    private static final long WATCHDOG_MS = TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * Receives batches and gaps, always on the same thread.
+     */
+    public interface BatchHandler {
+        /**
+         * Handles a batch. The batch is acknowledged when this method returns.
+         *
+         * @param batch - The events, in the order received.
+         */
+        void handleBatch(List<SequencedEvent> batch);
+
+        /**
+         * Reports that events of a device may have been missed.
+         *
+         * @param deviceName - The logical device name.
+         * @param lastAcknowledged - The sequence number of the device's last acknowledged event.
+         */
+        void handleGap(String deviceName, long lastAcknowledged);
+    }
+
+    /**
+     * An event with its device sequence number.
+     */
+    public static final class SequencedEvent {
+        private final String deviceName;
+        private final long sequence;
+        private final Event event;
+
+        SequencedEvent(String deviceName, long sequence, Event event) {
+            this.deviceName = deviceName;
+            this.sequence = sequence;
+            this.event = event;
+        }
+
+        /**
+         * Gets the logical name of the device that raised the event.
+         *
+         * @return The logical device name.
+         */
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        /**
+         * Gets the event's number among the device's events.
+         *
+         * @return The sequence number, from 1.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the event.
+         *
+         * @return The event.
+         */
+        public Event getEvent() {
+            return event;
+        }
+    }
+
+    /**
+     * Queued in place of an event to report a gap.
+     */
+    private static final class Gap {
+    }
+
+    /**
+     * Forwards the events of one listener registration until it is replaced.
+     */
+    private final class Registration implements IEnvoyEventHandler {
+        private final EnvoyEventListener listener;
+        private volatile boolean active = true;
+
+        Registration() throws RemoteException {
+            listener = new EnvoyEventListener();
+            listener.registerHandler(this);
+        }
+
+        @Override
+        public void handleEnvoyEvent(Event evt) {
+            if (active) {
+                BatchedEvents.this.handleEnvoyEvent(evt);
+            }
+        }
+
+        void close() {
+            active = false;
+
+            // The listener is exported when it is created; unexporting it releases it on both sides.
+            Object exported = listener;
+            if (exported instanceof Remote) {
+                try {
+                    UnicastRemoteObject.unexportObject((Remote) exported, true);
+                } catch (NoSuchObjectException e) {
+                    // Already unexported.
+                }
+            }
+        }
+    }
+
+    private static final String UNKNOWN_DEVICE = "";
+
+    private final IEnvoySystem envoySystem;
+    private final BatchHandler handler;
+    private final File stateFile;
+    private final int maxBatch;
+    private final long windowMs;
+
+    private final BlockingQueue<Object> incoming = new LinkedBlockingQueue<Object>();
+    private final Map<String, Long> acknowledged = new HashMap<String, Long>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    private final Thread flusher;
+
+    private Registration registration;
+    private boolean connected;
+
+    /**
+     * Creates a batcher.
+     *
+     * @param envoySystem - The Envoy system object, used to watch the connection.
+     * @param handler - Receives the batches and gaps.
+     * @param stateFile - The file the last acknowledged sequence numbers are kept in.
+     * @param maxBatch - The most events in one batch.
+     * @param windowMs - The longest an event waits for its batch to fill, in milliseconds.
+     * @throws IOException - If an existing state file could not be read.
+     */
+    public BatchedEvents(IEnvoySystem envoySystem, BatchHandler handler, File stateFile, int maxBatch, long windowMs)
+            throws IOException {
+        this.envoySystem = envoySystem;
+        this.handler = handler;
+        this.stateFile = stateFile;
+        this.maxBatch = maxBatch;
+        this.windowMs = windowMs;
+
+        if (stateFile.exists()) {
+            load();
+        }
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "event-batcher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Starts receiving events. Every device known from a previous run is reported as a gap first,
+     * since events may have been missed while the application was not running.
+     *
+     * @throws RemoteException - If the event listener could not be created.
+     */
+    public synchronized void start() throws RemoteException {
+        if (!acknowledged.isEmpty()) {
+            incoming.add(new Gap());
+        }
+        register();
+        flusher.start();
+
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, WATCHDOG_MS, WATCHDOG_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the connection and receiving events. Events already queued are still delivered.
+     */
+    public synchronized void stop() {
+        watchdog.shutdownNow();
+        if (registration != null) {
+            registration.close();
+            registration = null;
+        }
+    }
+
+    @Override
+    public void handleEnvoyEvent(Event evt) {
+        if (evt != null) {
+            incoming.add(evt);
+        }
+    }
+
+    private synchronized void register() throws RemoteException {
+        if (registration != null) {
+            // Release the old registration first, in case it survived the outage.
+            registration.close();
+            registration = null;
+        }
+        registration = new Registration();
+        connected = true;
+    }
+
+    private synchronized void check() {
+        try {
+            envoySystem.getRegisteredDeviceNames();
+            if (!connected) {
+                register();
+                incoming.add(new Gap());
+            }
+        } catch (RemoteException e) {
+            connected = false;
+        }
+    }
+
+    private void flush() {
+        Map<String, Long> next = new HashMap<String, Long>();
+        List<SequencedEvent> batch = new ArrayList<SequencedEvent>(maxBatch);
+
+        try {
+            while (true) {
+                Object first = incoming.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                Object item = first;
+
+                while (item != null) {
+                    if (item instanceof Gap) {
+                        deliver(batch);
+                        reportGaps();
+                        break;
+                    }
+
+                    Event event = (Event) item;
+                    String deviceName = event.getDeviceName() == null ? UNKNOWN_DEVICE : event.getDeviceName();
+                    Long sequence = next.get(deviceName);
+                    if (sequence == null) {
+                        Long last = acknowledged.get(deviceName);
+                        sequence = last == null ? 1 : last + 1;
+                    }
+                    batch.add(new SequencedEvent(deviceName, sequence, event));
+                    next.put(deviceName, sequence + 1);
+
+                    if (batch.size() == maxBatch) {
+                        break;
+                    }
+                    item = incoming.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                deliver(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliver(List<SequencedEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        handler.handleBatch(Collections.unmodifiableList(new ArrayList<SequencedEvent>(batch)));
+        synchronized (acknowledged) {
+            for (SequencedEvent event : batch) {
+                acknowledged.put(event.getDeviceName(), event.getSequence());
+            }
+        }
+        batch.clear();
+        saveQuietly();
+    }
+
+    private void reportGaps() {
+        Map<String, Long> last;
+        synchronized (acknowledged) {
+            last = new HashMap<String, Long>(acknowledged);
+        }
+        for (Map.Entry<String, Long> device : last.entrySet()) {
+            handler.handleGap(device.getKey(), device.getValue());
+        }
+    }
+
+    private void load() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(stateFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        for (String deviceName : properties.stringPropertyNames()) {
+            acknowledged.put(deviceName, Long.parseLong(properties.getProperty(deviceName)));
+        }
+    }
+
+    private void saveQuietly() {
+        Properties properties = new Properties();
+        synchronized (acknowledged) {
+            for (Map.Entry<String, Long> device : acknowledged.entrySet()) {
+                properties.setProperty(device.getKey(), device.getValue().toString());
+            }
+        }
+
+        // Write the new file beside the old one, so a crash never leaves a partial file.
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, "Last acknowledged event sequence numbers");
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(stateFile) && !(stateFile.delete() && temp.renameTo(stateFile))) {
+                throw new IOException("Unable to replace " + stateFile);
+            }
+        } catch (IOException e) {
+            // The numbers are saved again after the next batch.
+            System.out.println("Unable to save event sequence numbers: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the state file.
+     */
+    public static void main(String[] args) {
+        File stateFile = new File(args.length > 0 ? args[0] : "batched-events.properties");
+
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            BatchedEvents events = new BatchedEvents(envoySystem, new BatchHandler() {
+                @Override
+                public void handleBatch(List<SequencedEvent> batch) {
+                    System.out.println("Batch of " + batch.size() + " events:");
+                    for (SequencedEvent event : batch) {
+                        System.out.println("\t" + event.getDeviceName() + " #" + event.getSequence()
+                                + " " + event.getEvent().getEventType());
+                    }
+                }
+
+                @Override
+                public void handleGap(String deviceName, long lastAcknowledged) {
+                    System.out.println("Events of " + deviceName + " after #" + lastAcknowledged
+                            + " may have been missed; reconcile its state.");
+                }
+            }, stateFile, DEFAULT_MAX_BATCH, DEFAULT_WINDOW_MS);
+
+            events.start();
+            System.out.println("Listening for events; press Ctrl+C to exit.");
+            Thread.currentThread().join();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,433 @@
+package com.arca.envoy.example;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.RMISocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.arca.envoy.api.iface.ICS1oneDevice;
+import com.arca.envoy.api.iface.IEnvoySystem;
+
+/**
+ * CS1oneNetworkClient.
+ *
+ * This example demonstrates keeping the connection to a LAN-attached CS1one
+ * warm. Each Envoy API call travels over an RMI connection to the Envoy
+ * service; RMI closes a connection after 15 seconds of inactivity, so a
+ * POS application that talks to the CS1one every few seconds keeps paying
+ * for a new TCP connection, and after an Envoy service restart every stub it
+ * holds fails until it looks the device up again.
+ *
+ * The client in this example:
+ *
+ *  - Installs a socket factory that enables TCP keep-alive and disables
+ *    Nagle's algorithm on every RMI connection, and raises the RMI idle
+ *    timeout so connections are reused between transactions
+ *  - Sends a cheap heartbeat to the Envoy system object when the connection
+ *    has been idle, without sending anything to the CS1one itself
+ *  - Looks the device up again and retries once when a call fails because
+ *    the connection or the exported object is gone
+ *  - Runs independent queries concurrently with pipeline(); each uses its
+ *    own pooled connection, so the calls overlap instead of queueing
+ *
+ * Running the example with the argument "mock" starts a mock Envoy service
+ * with a mock CS1one on a local port and runs the client against it, so the
+ * connection reuse can be observed without hardware: it prints the number
+ * of calls made and the number of TCP connections the mock accepted.
+ *
+ * Usage:
+ *
+ *   CS1oneNetworkClient [device-name | mock]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance, unless running with "mock".
+ *  - A registered CS1one, unless running with "mock".
+ *
+ * See README for compilation and running instructions.
+ */
+public class CS1oneNetworkClient {
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long HEARTBEAT_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long RECONNECT_DELAY_MS = 250;
+    private static final int MOCK_PORT = 1299;
+    private static final int MOCK_LATENCY_MS = 20;
+
+    /** Keeps the mock registry and objects reachable while they are exported. */
+    private static final List<Object> MOCKS = new ArrayList<Object>();
+
+    /**
+     * A query against the CS1one.
+     *
+     * @param <T> - The result type.
+     */
+    public interface Query<T> {
+        /**
+         * Performs the device call.
+         *
+         * @param device - The CS1one.
+         * @return The call result.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        T call(ICS1oneDevice device) throws RemoteException;
+    }
+
+    /**
+     * Creates RMI client sockets with keep-alive, no Nagle delay and a connect timeout.
+     */
+    static final class KeepAliveSocketFactory extends RMISocketFactory {
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = new Socket();
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return new ServerSocket(port);
+        }
+    }
+
+    /**
+     * Installs the keep-alive socket factory and the longer RMI idle timeout.
+     * Must be called before the first RMI call.
+     *
+     * @throws IOException - If a socket factory has already been installed.
+     */
+    public static void install() throws IOException {
+        System.setProperty("sun.rmi.transport.connectionTimeout", Long.toString(IDLE_TIMEOUT_MS));
+        RMISocketFactory.setSocketFactory(new KeepAliveSocketFactory());
+    }
+
+    private final String systemUrl;
+    private final String deviceName;
+    private final ExecutorService queries = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile IEnvoySystem envoySystem;
+    private volatile ICS1oneDevice device;
+    private volatile long lastUsed;
+
+    /**
+     * Connects to a registered CS1one.
+     *
+     * @param systemUrl - The URL of the Envoy system object, such as "//localhost/envoy/system".
+     * @param deviceName - The logical device name of the CS1one.
+     * @throws RemoteException - If the Envoy service could not be reached.
+     * @throws NotBoundException - If the Envoy service is not running.
+     * @throws MalformedURLException - If the URL is invalid.
+     */
+    public CS1oneNetworkClient(String systemUrl, String deviceName)
+            throws RemoteException, NotBoundException, MalformedURLException {
+        this.systemUrl = systemUrl;
+        this.deviceName = deviceName;
+        connect();
+
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                beat();
+            }
+        }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void connect() throws RemoteException, NotBoundException, MalformedURLException {
+        envoySystem = (IEnvoySystem) Naming.lookup(systemUrl);
+        String devicePath = envoySystem.getDevicePath(deviceName);
+        if (devicePath == null) {
+            throw new NotBoundException(deviceName + " is not registered.");
+        }
+        device = (ICS1oneDevice) Naming.lookup(devicePath);
+        lastUsed = System.nanoTime();
+    }
+
+    private void beat() {
+        if (System.nanoTime() - lastUsed < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS)) {
+            return;
+        }
+        try {
+            // Touches the service only; the CS1one is not involved.
+            envoySystem.isRegisteredDeviceName(deviceName);
+            lastUsed = System.nanoTime();
+        } catch (RemoteException e) {
+            reconnectQuietly();
+        }
+    }
+
+    private void reconnectQuietly() {
+        try {
+            connect();
+        } catch (RemoteException e) {
+            // The service is still down; the next heartbeat or call tries again.
+        } catch (NotBoundException e) {
+            // The service has not published its objects yet.
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs a query, looking the device up again and retrying once if the connection was lost.
+     *
+     * @param query - The query.
+     * @param <T> - The result type.
+     * @return The result.
+     * @throws RemoteException - If the query failed again after reconnecting.
+     */
+    public <T> T call(Query<T> query) throws RemoteException {
+        try {
+            T result = query.call(device);
+            lastUsed = System.nanoTime();
+            return result;
+        } catch (RemoteException e) {
+            if (!isConnectionLost(e)) {
+                throw e;
+            }
+        }
+
+        try {
+            Thread.sleep(RECONNECT_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reconnectQuietly();
+
+        T result = query.call(device);
+        lastUsed = System.nanoTime();
+        return result;
+    }
+
+    /**
+     * Runs independent queries concurrently.
+     *
+     * @param pipelined - The queries.
+     * @return The results, in the order of the queries.
+     * @throws RemoteException - The first failure, after every query has finished.
+     */
+    public List<Object> pipeline(List<? extends Query<?>> pipelined) throws RemoteException {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (final Query<?> query : pipelined) {
+            futures.add(queries.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws RemoteException {
+                    return CS1oneNetworkClient.this.call(query);
+                }
+            }));
+        }
+
+        List<Object> results = new ArrayList<Object>();
+        RemoteException failure = null;
+        for (Future<Object> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RemoteException
+                            ? (RemoteException) e.getCause()
+                            : new RemoteException("Query failed.", e.getCause());
+                }
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted waiting for queries.", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Stops the heartbeat and the query threads.
+     */
+    public void close() {
+        heartbeat.shutdownNow();
+        queries.shutdownNow();
+    }
+
+    private static boolean isConnectionLost(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException;
+    }
+
+    /**
+     * Accepts mock connections and counts them.
+     */
+    static final class CountingServerSocketFactory implements RMIServerSocketFactory {
+        private final AtomicInteger accepted = new AtomicInteger();
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return new ServerSocket(port) {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    accepted.incrementAndGet();
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other == this;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+
+    /**
+     * Starts a mock Envoy service with one mock CS1one. Every device call takes a few
+     * milliseconds and returns a default value.
+     *
+     * @param port - The port for the mock registry and objects.
+     * @param calls - Counts the device calls made.
+     * @return The server socket factory, which counts accepted connections.
+     * @throws RemoteException - If the mock could not be exported.
+     */
+    static CountingServerSocketFactory startMock(final int port, final AtomicInteger calls) throws RemoteException {
+        CountingServerSocketFactory sockets = new CountingServerSocketFactory();
+        Registry registry = LocateRegistry.createRegistry(port, null, sockets);
+
+        ICS1oneDevice cs1one = (ICS1oneDevice) Proxy.newProxyInstance(ICS1oneDevice.class.getClassLoader(),
+                new Class<?>[] {ICS1oneDevice.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        calls.incrementAndGet();
+                        Thread.sleep(MOCK_LATENCY_MS);
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        IEnvoySystem system = (IEnvoySystem) Proxy.newProxyInstance(IEnvoySystem.class.getClassLoader(),
+                new Class<?>[] {IEnvoySystem.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getDevicePath".equals(method.getName())) {
+                            return "//localhost:" + port + "/envoy/device/" + args[0];
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+
+        registry.rebind("envoy/system", UnicastRemoteObject.exportObject(system, port, null, sockets));
+        registry.rebind("envoy/device/CS1ONE", UnicastRemoteObject.exportObject(cs1one, port, null, sockets));
+        MOCKS.add(registry);
+        MOCKS.add(system);
+        MOCKS.add(cs1one);
+        return sockets;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.TRUE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the CS1one logical device name, or "mock".
+     */
+    public static void main(String[] args) {
+        boolean mock = args.length > 0 && "mock".equals(args[0]);
+        String deviceName = args.length > 0 && !mock ? args[0] : "CS1ONE";
+
+        try {
+            install();
+
+            AtomicInteger calls = new AtomicInteger();
+            CountingServerSocketFactory mockSockets = null;
+            String systemUrl = "//localhost/envoy/system";
+            if (mock) {
+                mockSockets = startMock(MOCK_PORT, calls);
+                systemUrl = "//localhost:" + MOCK_PORT + "/envoy/system";
+            }
+
+            CS1oneNetworkClient client = new CS1oneNetworkClient(systemUrl, deviceName);
+
+            // Several transactions, each polling the status and last note together.
+            List<Query<?>> poll = new ArrayList<Query<?>>();
+            poll.add(new Query<Object>() {
+                @Override
+                public Object call(ICS1oneDevice device) throws RemoteException {
+                    return device.getStatus();
+                }
+            });
+            poll.add(new Query<Object>() {
+                @Override
+                public Object call(ICS1oneDevice device) throws RemoteException {
+                    return device.getLastNoteStatus();
+                }
+            });
+
+            for (int i = 1; i <= 5; i++) {
+                long start = System.nanoTime();
+                List<Object> results = client.pipeline(poll);
+                System.out.println("Poll " + i + " took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                        + " ms: status " + results.get(0));
+                Thread.sleep(1000);
+            }
+
+            if (mockSockets != null) {
+                System.out.println("Mock CS1one calls: " + calls.get()
+                        + ", TCP connections accepted: " + mockSockets.accepted.get());
+            }
+            client.close();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
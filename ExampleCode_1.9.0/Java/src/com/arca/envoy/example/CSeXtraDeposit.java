@@ -0,0 +1,318 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.APICommandException;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.EventEnum;
+import com.arca.envoy.api.iface.ICSeXtraDevice;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.NoteEventData;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * CSeXtraDeposit.
+ *
+ * This example demonstrates reporting a CSeXtra bulk deposit note by note.
+ * Deposit Notes runs until the feeder is empty or a note count is reached,
+ * and only then can Get Note Count by Type tell the caller what was counted.
+ * For a deposit of hundreds of notes the teller sees nothing until the end.
+ *
+ * The CSeXtra raises a STACKED event for every note stored in the bag while
+ * Deposit Notes runs. This example issues a single Deposit Notes command and
+ * builds the deposit from those events:
+ *
+ *  - Each STACKED event is reported to the listener at once, with the
+ *    note's denomination and its position in the deposit
+ *  - A note rejected by the device raises no STACKED event, so it is not
+ *    counted, and it does not end the deposit
+ *  - If Deposit Notes fails, for example with a jam or a lost connection,
+ *    the result lists exactly the notes whose STACKED events arrived
+ *  - The listener receives the counts by type of the whole deposit at the
+ *    end, so the caller never has to query Get Note Count by Type
+ *
+ * Events travel separately from the command reply, so the last STACKED
+ * events may arrive after Deposit Notes returns. The deposit ends once
+ * Deposit Notes has returned and no STACKED event has arrived for
+ * EVENT_SETTLE_MS.
+ *
+ * Usage:
+ *
+ *   CSeXtraDeposit [max-notes]
+ *
+ * Deposit Notes stops by itself when the feeder is empty, so the default
+ * count deposits everything in the feeder.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered CSeXtra with notes in its feeder.
+ *
+ * See README for compilation and running instructions.
+ */
+public class CSeXtraDeposit implements IEnvoyEventHandler {
+
+    private static final int DEFAULT_MAX_NOTES = 1000;
+    private static final long EVENT_SETTLE_MS = 500;
+
+    /**
+     * Receives the progress of a deposit.
+     */
+    public interface DepositListener {
+        /**
+         * Called on the event thread for each STACKED event, in the order the notes were stacked.
+         *
+         * @param note - The denomination of the note.
+         * @param position - The position of the note in the deposit, from 1.
+         */
+        void noteStacked(Denomination note, int position);
+
+        /**
+         * Called once when the deposit ends, successfully or not.
+         *
+         * @param result - The deposit result.
+         */
+        void depositEnded(DepositResult result);
+    }
+
+    /**
+     * The notes stacked so far by the deposit in progress.
+     */
+    private static final class Deposit {
+        private final DepositListener listener;
+        private final Map<Denomination, Integer> counts = new HashMap<Denomination, Integer>();
+        private int total;
+        /** When the last STACKED event arrived or Deposit Notes returned. */
+        private long lastActivityAt = System.nanoTime();
+
+        Deposit(DepositListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The outcome of a deposit.
+     */
+    public static final class DepositResult {
+        private final Map<Denomination, Integer> counts;
+        private final int total;
+        private final Exception error;
+
+        DepositResult(Map<Denomination, Integer> counts, int total, Exception error) {
+            this.counts = Collections.unmodifiableMap(counts);
+            this.total = total;
+            this.error = error;
+        }
+
+        /**
+         * Gets the number of notes counted of each denomination.
+         *
+         * @return The counts by type.
+         */
+        public Map<Denomination, Integer> getCounts() {
+            return counts;
+        }
+
+        /**
+         * Gets the number of notes counted of one denomination.
+         *
+         * @param denom - The denomination.
+         * @return The count.
+         */
+        public int getCount(Denomination denom) {
+            Integer count = counts.get(denom);
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * Gets the number of notes counted.
+         *
+         * @return The total count.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Gets the error that ended the deposit early.
+         *
+         * @return The error, or null if the deposit completed.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Determines whether the deposit completed.
+         *
+         * @return True if Deposit Notes completed without an error.
+         */
+        public boolean isComplete() {
+            return error == null;
+        }
+    }
+
+    private final String deviceName;
+    private final ICSeXtraDevice device;
+
+    private volatile Deposit current;
+
+    /**
+     * Creates a deposit runner. Register it with an EnvoyEventListener to receive the STACKED events.
+     *
+     * @param deviceName - The CSeXtra's logical device name; events from other devices are ignored.
+     * @param device - The CSeXtra.
+     */
+    public CSeXtraDeposit(String deviceName, ICSeXtraDevice device) {
+        this.deviceName = deviceName;
+        this.device = device;
+    }
+
+    @Override
+    public void handleEnvoyEvent(Event event) {
+        Deposit deposit = current;
+        if (event == null || deposit == null || event.getEventType() != EventEnum.STACKED
+                || !deviceName.equals(event.getDeviceName())) {
+            return;
+        }
+
+        Denomination note = ((NoteEventData) event.getEventData()).getNote().getDenoms().get(0);
+        int position;
+        synchronized (deposit) {
+            Integer count = deposit.counts.get(note);
+            deposit.counts.put(note, (count == null ? 0 : count) + 1);
+            position = ++deposit.total;
+            deposit.lastActivityAt = System.nanoTime();
+        }
+        deposit.listener.noteStacked(note, position);
+    }
+
+    /**
+     * Runs a deposit, reporting each note as it is stacked.
+     *
+     * @param maxNotes - The most notes to count; the deposit also ends when the feeder is empty.
+     * @param listener - Receives the counted notes and the result.
+     * @return The result, also passed to the listener.
+     */
+    public DepositResult deposit(int maxNotes, DepositListener listener) {
+        Deposit deposit = new Deposit(listener);
+        Exception error = null;
+
+        current = deposit;
+        try {
+            device.depositNotes(maxNotes);
+        } catch (APICommandException e) {
+            error = e;
+        } catch (RemoteException e) {
+            error = e;
+        }
+
+        // The notes stacked before a failure still raise their events, so wait for them either way.
+        synchronized (deposit) {
+            deposit.lastActivityAt = System.nanoTime();
+        }
+        awaitSettled(deposit);
+        current = null;
+
+        DepositResult result;
+        synchronized (deposit) {
+            result = new DepositResult(new HashMap<Denomination, Integer>(deposit.counts), deposit.total, error);
+        }
+        listener.depositEnded(result);
+        return result;
+    }
+
+    private static void awaitSettled(Deposit deposit) {
+        long settleNanos = TimeUnit.MILLISECONDS.toNanos(EVENT_SETTLE_MS);
+        try {
+            while (true) {
+                long quietNanos;
+                synchronized (deposit) {
+                    quietNanos = System.nanoTime() - deposit.lastActivityAt;
+                }
+                if (quietNanos >= settleNanos) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.sleep(settleNanos - quietNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the most notes to count.
+     */
+    public static void main(String[] args) {
+        int maxNotes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_NOTES;
+
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String csextraName = null;
+            String devicePath = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.CSEXTRA) {
+                    csextraName = deviceName;
+                    devicePath = envoySystem.getDevicePath(deviceName);
+                    break;
+                }
+            }
+
+            if (devicePath == null) {
+                System.out.println("No registered CSeXtra found.");
+                System.exit(1);
+            }
+
+            ICSeXtraDevice device = (ICSeXtraDevice) Naming.lookup(devicePath);
+
+            CSeXtraDeposit deposit = new CSeXtraDeposit(csextraName, device);
+            EnvoyEventListener eel = new EnvoyEventListener();
+            eel.registerHandler(deposit);
+
+            System.out.println("Depositing notes.");
+            deposit.deposit(maxNotes, new DepositListener() {
+                @Override
+                public void noteStacked(Denomination note, int position) {
+                    System.out.println("\tNote " + position + ": " + note);
+                }
+
+                @Override
+                public void depositEnded(DepositResult result) {
+                    System.out.println((result.isComplete() ? "Deposit complete: " : "Deposit stopped early: ")
+                            + result.getTotal() + " notes " + result.getCounts());
+                    if (!result.isComplete()) {
+                        System.out.println("Reason: " + result.getError().getMessage());
+                    }
+                }
+            });
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
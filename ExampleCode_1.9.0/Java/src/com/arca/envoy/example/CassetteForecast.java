@@ -0,0 +1,495 @@
+package com.arca.envoy.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.iface.FujitsuDeviceStatusRsp;
+import com.arca.envoy.api.iface.FujitsuDispByPosRsp;
+import com.arca.envoy.api.iface.FujitsuDispenseByPositionPrm;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.IFujitsuDevice;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * CassetteForecast.
+ *
+ * This example demonstrates estimating how many notes are left in each
+ * cassette of a Fujitsu F53 or F400, so that a payout avoids a cassette
+ * before it runs out. The F53 cannot detect an empty cassette, only the
+ * near-end point; without an estimate, an empty cassette is found by a
+ * partial dispenseByPosition() and a retry from another position while the
+ * customer waits.
+ *
+ * Every cassette's remaining notes are kept as an estimate with an
+ * uncertainty, updated from:
+ *
+ *  - The count loaded, with the operator's counting tolerance
+ *  - The notes dispensed from the position, from every FujitsuDispByPosRsp
+ *  - Rejected notes, as counted by the application
+ *  - The near-end sensor turning on, as read from Device Status before each
+ *    allocation; it means roughly a known number of notes is left, and the
+ *    sensor reading and the count are combined, weighted by how certain
+ *    each is
+ *  - A dispense failure the application has identified as an empty
+ *    cassette; a partial dispense alone does not mean the cassette is
+ *    empty, since rejects, pick failures and jams also cut a dispense short
+ *
+ * Each dispensed or rejected note adds a little uncertainty, for notes
+ * picked or counted wrongly, so the bounds widen as a cassette is used and
+ * narrow again when the near-end sensor turns on.
+ *
+ * The payout path asks allocate() to spread a payout over the cassettes
+ * holding the denomination. A cassette is only used for as many notes as the
+ * lower bound of its estimate allows, so a payout that the cassettes can
+ * probably not cover is refused before any dispense is attempted. One
+ * allocation never exceeds the dispenser's per-command limit (20 notes on
+ * the F53, 99 on the F400, as checked by CommandValidation); a larger
+ * payout is allocated and dispensed in several commands. The estimates are
+ * saved after every change, so they survive restarts.
+ *
+ * Usage:
+ *
+ *   CassetteForecast state-file [position=count ...]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered F53 with the same denomination in cassettes 1 and 2.
+ *
+ * See README for compilation and running instructions.
+ */
+public class CassetteForecast {
+
+    /** Standard deviations between an estimate and its bounds; about 95% confidence. */
+    private static final double Z = 2.0;
+
+    /** The standard deviation of a count known to be exact. */
+    private static final double EXACT_SD = 0.5;
+
+    /**
+     * The estimated contents of one cassette.
+     */
+    public static final class Estimate {
+        private final int position;
+        private final double mean;
+        private final double variance;
+        private final boolean nearEnd;
+
+        Estimate(int position, double mean, double variance, boolean nearEnd) {
+            this.position = position;
+            this.mean = mean;
+            this.variance = variance;
+            this.nearEnd = nearEnd;
+        }
+
+        /**
+         * Gets the cassette position.
+         *
+         * @return The position.
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * Gets the most likely number of notes left.
+         *
+         * @return The estimate, rounded.
+         */
+        public int getRemaining() {
+            return (int) Math.max(0, Math.round(mean));
+        }
+
+        /**
+         * Gets the number of notes that is almost certainly left.
+         *
+         * @return The lower bound.
+         */
+        public int getLowerBound() {
+            return (int) Math.max(0, Math.floor(mean - Z * Math.sqrt(variance)));
+        }
+
+        /**
+         * Gets the number of notes that is almost certainly not exceeded.
+         *
+         * @return The upper bound.
+         */
+        public int getUpperBound() {
+            return (int) Math.max(0, Math.ceil(mean + Z * Math.sqrt(variance)));
+        }
+
+        /**
+         * Gets whether the near-end sensor has turned on since the cassette was loaded.
+         *
+         * @return Whether the cassette is near end.
+         */
+        public boolean isNearEnd() {
+            return nearEnd;
+        }
+
+        @Override
+        public String toString() {
+            return "Pos #" + position + ": " + getRemaining() + " [" + getLowerBound() + ", " + getUpperBound() + "]"
+                    + (nearEnd ? " near end" : "");
+        }
+    }
+
+    private final File stateFile;
+    private final double loadSd;
+    private final double noteSd;
+    private final double nearEndCount;
+    private final double nearEndSd;
+    private final Map<Integer, double[]> cassettes = new TreeMap<Integer, double[]>();
+    private final Map<Integer, Boolean> nearEnd = new HashMap<Integer, Boolean>();
+
+    /**
+     * Creates an estimator. The near-end figures depend on the cassette type and
+     * the notes, and are best measured on site by emptying a cassette after the sensor turns on.
+     *
+     * @param stateFile - The file the estimates are kept in.
+     * @param loadSd - The standard deviation of a loaded count, in notes.
+     * @param noteSd - The standard deviation added by each dispensed or rejected note, in notes.
+     * @param nearEndCount - The average number of notes left when the near-end sensor turns on.
+     * @param nearEndSd - The standard deviation of that number, in notes.
+     * @throws IOException - If an existing state file could not be read.
+     */
+    public CassetteForecast(File stateFile, double loadSd, double noteSd, double nearEndCount, double nearEndSd)
+            throws IOException {
+        this.stateFile = stateFile;
+        this.loadSd = loadSd;
+        this.noteSd = noteSd;
+        this.nearEndCount = nearEndCount;
+        this.nearEndSd = nearEndSd;
+
+        if (stateFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Records that a cassette was loaded.
+     *
+     * @param position - The cassette position.
+     * @param count - The number of notes loaded.
+     */
+    public synchronized void loaded(int position, int count) {
+        cassettes.put(position, new double[] {count, loadSd * loadSd});
+        nearEnd.put(position, false);
+        saveQuietly();
+    }
+
+    /**
+     * Records the result of a dispense. Only the notes actually dispensed are counted; a shortfall
+     * is not taken to mean the cassette is empty, as rejects, pick failures and jams also cause one.
+     *
+     * @param posToCount - The number of notes requested from each position.
+     * @param rsp - The dispense response.
+     */
+    public synchronized void dispensed(Map<Integer, Integer> posToCount, FujitsuDispByPosRsp rsp) {
+        for (Map.Entry<Integer, Integer> position : posToCount.entrySet()) {
+            double[] cassette = cassettes.get(position.getKey());
+            if (cassette != null) {
+                removed(cassette, rsp.getDispensedByPosition(position.getKey()));
+            }
+        }
+        saveQuietly();
+    }
+
+    /**
+     * Records that a cassette is empty, when a dispense failure indicates it.
+     *
+     * @param position - The cassette position.
+     */
+    public synchronized void emptied(int position) {
+        double[] cassette = cassettes.get(position);
+        if (cassette != null) {
+            cassette[0] = 0;
+            cassette[1] = EXACT_SD * EXACT_SD;
+            saveQuietly();
+        }
+    }
+
+    /**
+     * Records notes rejected from a cassette.
+     *
+     * @param position - The cassette position.
+     * @param count - The number of notes rejected.
+     */
+    public synchronized void rejected(int position, int count) {
+        double[] cassette = cassettes.get(position);
+        if (cassette != null) {
+            removed(cassette, count);
+            saveQuietly();
+        }
+    }
+
+    /**
+     * Records a reading of a cassette's near-end sensor. Only the reading that turns it on changes the estimate.
+     *
+     * @param position - The cassette position.
+     * @param on - Whether the sensor reports near end.
+     */
+    public synchronized void nearEnd(int position, boolean on) {
+        double[] cassette = cassettes.get(position);
+        if (cassette == null || Boolean.TRUE.equals(nearEnd.get(position)) == on) {
+            return;
+        }
+
+        nearEnd.put(position, on);
+        if (on) {
+            // Combine the count with the sensor, weighting each by the inverse of its variance.
+            double sensorVariance = nearEndSd * nearEndSd;
+            double gain = cassette[1] / (cassette[1] + sensorVariance);
+            cassette[0] += gain * (nearEndCount - cassette[0]);
+            cassette[1] *= 1 - gain;
+        }
+        saveQuietly();
+    }
+
+    /**
+     * Gets the estimate of every loaded cassette.
+     *
+     * @return The estimates, by position.
+     */
+    public synchronized List<Estimate> getEstimates() {
+        List<Estimate> estimates = new ArrayList<Estimate>();
+        for (Map.Entry<Integer, double[]> cassette : cassettes.entrySet()) {
+            estimates.add(estimate(cassette.getKey()));
+        }
+        return estimates;
+    }
+
+    /**
+     * Spreads a payout over cassettes holding the same denomination, taking from each no more
+     * than the lower bound of its estimate, fullest cassettes first. At most the dispenser's
+     * per-command limit is allocated; allocate the rest again after recording the dispense.
+     *
+     * @param deviceType - The dispenser type.
+     * @param positions - The positions holding the denomination.
+     * @param count - The number of notes still to pay out.
+     * @return The number of notes to dispense from each position in the next command, or null if the
+     *         cassettes can probably not cover it.
+     */
+    public synchronized HashMap<Integer, Integer> allocate(DeviceType deviceType, List<Integer> positions, int count) {
+        List<Estimate> candidates = new ArrayList<Estimate>();
+        for (Integer position : positions) {
+            if (cassettes.containsKey(position)) {
+                candidates.add(estimate(position));
+            }
+        }
+        Collections.sort(candidates, new Comparator<Estimate>() {
+            @Override
+            public int compare(Estimate a, Estimate b) {
+                return Integer.compare(b.getLowerBound(), a.getLowerBound());
+            }
+        });
+
+        HashMap<Integer, Integer> posToCount = new HashMap<Integer, Integer>();
+        int remaining = Math.min(count, CommandValidation.getDispenseLimit(deviceType));
+        for (Estimate candidate : candidates) {
+            int take = Math.min(remaining, candidate.getLowerBound());
+            if (take > 0) {
+                posToCount.put(candidate.getPosition(), take);
+                remaining -= take;
+            }
+        }
+        return remaining == 0 ? posToCount : null;
+    }
+
+    private void removed(double[] cassette, int count) {
+        // Every note is a chance of a miscount, so the uncertainty grows with the notes taken.
+        cassette[0] -= count;
+        cassette[1] += count * noteSd * noteSd;
+    }
+
+    private Estimate estimate(int position) {
+        double[] cassette = cassettes.get(position);
+        return new Estimate(position, cassette[0], cassette[1], Boolean.TRUE.equals(nearEnd.get(position)));
+    }
+
+    private void load() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(stateFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        // One line per cassette: position=mean,variance,nearEnd
+        for (String position : properties.stringPropertyNames()) {
+            String[] fields = properties.getProperty(position).split(",");
+            int pos = Integer.parseInt(position);
+            cassettes.put(pos, new double[] {Double.parseDouble(fields[0]), Double.parseDouble(fields[1])});
+            nearEnd.put(pos, Boolean.parseBoolean(fields[2]));
+        }
+    }
+
+    private void saveQuietly() {
+        Properties properties = new Properties();
+        for (Map.Entry<Integer, double[]> cassette : cassettes.entrySet()) {
+            properties.setProperty(cassette.getKey().toString(), cassette.getValue()[0] + "," + cassette.getValue()[1]
+                    + "," + Boolean.TRUE.equals(nearEnd.get(cassette.getKey())));
+        }
+
+        // Write the new file beside the old one, so a crash never leaves a partial file.
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, "Cassette estimates: position=mean,variance,nearEnd");
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(stateFile) && !(stateFile.delete() && temp.renameTo(stateFile))) {
+                throw new IOException("Unable to replace " + stateFile);
+            }
+        } catch (IOException e) {
+            // The estimates are saved again after the next change.
+            System.out.println("Unable to save cassette estimates: " + e.getMessage());
+        }
+    }
+
+    /**
+     * ASSUMED API. The Device Status near-end sensor readings.
+     * <p>
+     * The README documents a Device Status command that reports the sensor and
+     * cassette registers, including each cassette's near-end (low media)
+     * sensor. The IFujitsuDevice method and response names used here are
+     * assumed, not taken from an SDK example; this is the only place they
+     * appear, so it is the only code to change if the Envoy API names them
+     * differently.
+     */
+    private static final class NearEndSensors {
+        private final IFujitsuDevice device;
+
+        NearEndSensors(IFujitsuDevice device) {
+            this.device = device;
+        }
+
+        /**
+         * Reads Device Status once and reports the near-end sensor of each cassette.
+         *
+         * @param positions - The cassette positions.
+         * @return Whether each cassette is near end, by position.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        Map<Integer, Boolean> read(List<Integer> positions) throws RemoteException {
+            FujitsuDeviceStatusRsp status = device.getDeviceStatus();
+            Map<Integer, Boolean> nearEnd = new HashMap<Integer, Boolean>();
+            for (Integer position : positions) {
+                nearEnd.put(position, status.isNearEnd(position));
+            }
+            return nearEnd;
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the state file, then position=count for each cassette just loaded.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: CassetteForecast state-file [position=count ...]");
+            System.exit(1);
+        }
+
+        try {
+            // Example figures; measure the near-end point of your own cassettes.
+            CassetteForecast forecast = new CassetteForecast(new File(args[0]), 2, 0.1, 50, 15);
+            for (int i = 1; i < args.length; i++) {
+                String[] load = args[i].split("=");
+                forecast.loaded(Integer.parseInt(load[0]), Integer.parseInt(load[1]));
+            }
+
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String devicePath = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.FUJITSU_F53) {
+                    devicePath = envoySystem.getDevicePath(deviceName);
+                    break;
+                }
+            }
+
+            if (devicePath == null) {
+                System.out.println("No registered F53 found.");
+                System.exit(1);
+            }
+
+            IFujitsuDevice f53 = (IFujitsuDevice) Naming.lookup(devicePath);
+            NearEndSensors sensors = new NearEndSensors(f53);
+            for (Estimate estimate : forecast.getEstimates()) {
+                System.out.println("\t" + estimate);
+            }
+
+            // Pay out 3 notes from cassettes 1 and 2, avoiding any cassette that may run out.
+            List<Integer> positions = Arrays.asList(1, 2);
+            int remaining = 3;
+            while (remaining > 0) {
+                // Read the near-end sensors first; nearEnd() only acts on the reading that turns one on.
+                for (Map.Entry<Integer, Boolean> sensor : sensors.read(positions).entrySet()) {
+                    forecast.nearEnd(sensor.getKey(), sensor.getValue());
+                }
+
+                HashMap<Integer, Integer> posToCount = forecast.allocate(DeviceType.FUJITSU_F53, positions, remaining);
+                if (posToCount == null) {
+                    System.out.println("The cassettes can probably not cover the payout; replenish them first.");
+                    System.exit(1);
+                }
+
+                FujitsuDispByPosRsp rsp = f53.dispenseByPosition(new FujitsuDispenseByPositionPrm(posToCount));
+                forecast.dispensed(posToCount, rsp);
+                int dispensed = 0;
+                for (Integer position : posToCount.keySet()) {
+                    dispensed += rsp.getDispensedByPosition(position);
+                }
+                System.out.println("Dispensed " + dispensed + " of " + posToCount + "; estimates now:");
+                for (Estimate estimate : forecast.getEstimates()) {
+                    System.out.println("\t" + estimate);
+                }
+                if (dispensed == 0) {
+                    System.out.println("Nothing was dispensed; check the dispenser.");
+                    System.exit(1);
+                }
+                remaining -= dispensed;
+            }
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,468 @@
+package com.arca.envoy.example;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.rmi.ConnectException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+
+/**
+ * ClientDaemon.
+ *
+ * This example demonstrates a resident client that scripts and non-Java
+ * tools use instead of starting an example for every operation. Each example
+ * pays for a JVM start, Naming.lookup(), device discovery and event listener
+ * setup before its first command; a script that runs one operation at a
+ * time pays for all of it every time.
+ *
+ * Started with "serve", the daemon connects to the Envoy service once and
+ * keeps the device directory, the device stubs and one event listener. It
+ * accepts connections on a loopback TCP port (Java 8 has no Unix domain
+ * sockets; the port is never bound to another interface).
+ *
+ * Unlike a Unix domain socket, a TCP port has no file permissions, and any
+ * local user could connect to it. The daemon therefore writes a random token
+ * to the file .envoy-client-daemon.token in the user's home directory,
+ * readable and writable only by its owner, and the first line of every
+ * connection must be that token; a connection that does not send it is
+ * closed. The token changes every time the daemon starts.
+ *
+ * After the token, the daemon reads one command per line:
+ *
+ *  - devices                 lists the registered devices and their types
+ *  - call DEVICE METHOD      calls a method without parameters declared by
+ *                            the device's remote interface, for example
+ *                            "call SCR1 getStatus"
+ *  - refresh                 discovers the devices again
+ *  - events                  streams every event until the connection closes
+ *
+ * Every response line starts with "  " and the response ends with a line of
+ * "OK" or "ERR message"; events are streamed as "EVENT device type" lines.
+ * Each event subscriber has its own bounded queue and writer thread, so a
+ * slow subscriber never holds up the Envoy callback thread; a subscriber
+ * that falls more than SUBSCRIBER_QUEUE events behind is disconnected.
+ *
+ * A call is retried once on a fresh stub only when the old stub could not
+ * reach the device (the service restarted), because then the call never
+ * ran; any other RemoteException is reported, since the command may already
+ * have run on the device.
+ *
+ * A tool can talk to the daemon directly, for example with
+ * "(cat ~/.envoy-client-daemon.token; echo devices) | nc 127.0.0.1 7450", or
+ * run this class with a command as the thin client.
+ *
+ * Usage:
+ *
+ *   ClientDaemon serve [port]
+ *   ClientDaemon [-p port] devices | refresh | events | call DEVICE METHOD
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *
+ * See README for compilation and running instructions.
+ */
+public class ClientDaemon {
+
+    private static final int DEFAULT_PORT = 7450;
+    private static final String OK = "OK";
+    private static final String ERR = "ERR ";
+    private static final String LINE = "  ";
+    private static final int SUBSCRIBER_QUEUE = 1000;
+    private static final long POLL_MS = 500;
+    private static final Path TOKEN_FILE = Paths.get(System.getProperty("user.home"), ".envoy-client-daemon.token");
+
+    /**
+     * A connection receiving events, with its own queue and writer thread.
+     */
+    private final class Subscriber implements Runnable {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(SUBSCRIBER_QUEUE);
+        private volatile boolean closed;
+
+        Subscriber(Socket socket, PrintWriter out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void offer(String line) {
+            if (!queue.offer(line)) {
+                System.out.println("Event subscriber fell behind; disconnecting it.");
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    String line = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (line != null) {
+                        out.println(line);
+                        if (out.checkError()) {
+                            close();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            closed = true;
+            subscribers.remove(this);
+            try {
+                // Also ends the connection's read loop.
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    private final IEnvoySystem envoySystem;
+    private final Map<String, DeviceType> directory = new ConcurrentHashMap<String, DeviceType>();
+    private final Map<String, Remote> stubs = new ConcurrentHashMap<String, Remote>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private EnvoyEventListener listener;
+    private byte[] token;
+
+    /**
+     * Creates a daemon for an Envoy service.
+     *
+     * @param envoySystem - The Envoy system object.
+     */
+    public ClientDaemon(IEnvoySystem envoySystem) {
+        this.envoySystem = envoySystem;
+    }
+
+    /**
+     * Discovers the devices, starts the event listener and writes the token file, then accepts connections until
+     * the process ends.
+     *
+     * @param port - The loopback port.
+     * @throws IOException - If the token file could not be written or the port could not be bound.
+     */
+    public void serve(int port) throws IOException {
+        refresh();
+        token = writeToken();
+        listener = new EnvoyEventListener();
+        listener.registerHandler(new IEnvoyEventHandler() {
+            @Override
+            public void handleEnvoyEvent(Event evt) {
+                if (evt != null) {
+                    publish("EVENT " + evt.getDeviceName() + " " + evt.getEventType());
+                }
+            }
+        });
+
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.println("Listening on " + server.getLocalSocketAddress());
+        while (true) {
+            final Socket socket = server.accept();
+            connections.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the device directory again and drops the cached stubs.
+     *
+     * @throws RemoteException - If the Envoy service could not be reached.
+     */
+    public synchronized void refresh() throws RemoteException {
+        Map<String, DeviceType> devices = new TreeMap<String, DeviceType>();
+        for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+            devices.put(deviceName, envoySystem.getRegisteredDeviceInformation(deviceName).getDeviceType());
+        }
+        directory.keySet().retainAll(devices.keySet());
+        directory.putAll(devices);
+        stubs.clear();
+    }
+
+    /**
+     * Writes a new random token to the token file, readable and writable only by the current user.
+     *
+     * @return The token.
+     * @throws IOException - If the file could not be written.
+     */
+    private static byte[] writeToken() throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+
+        // Create the file with its final permissions, so it is never readable by others, even briefly.
+        Files.deleteIfExists(TOKEN_FILE);
+        try {
+            Files.createFile(TOKEN_FILE, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, as on Windows; restrict the file to its owner as far as Java allows.
+            File file = Files.createFile(TOKEN_FILE).toFile();
+            if (!file.setReadable(false, false) || !file.setReadable(true, true)
+                    || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+                throw new IOException("Could not restrict the permissions of " + TOKEN_FILE);
+            }
+        }
+        Files.write(TOKEN_FILE, hex.toString().getBytes(StandardCharsets.UTF_8));
+        return hex.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            Subscriber subscriber = null;
+            try {
+                String presented = in.readLine();
+                if (presented == null
+                        || !MessageDigest.isEqual(token, presented.trim().getBytes(StandardCharsets.UTF_8))) {
+                    out.println(ERR + "Not authorized.");
+                    return;
+                }
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] words = line.trim().split("\\s+");
+                    if ("events".equals(words[0])) {
+                        // The connection now only receives events.
+                        out.println(OK);
+                        subscriber = new Subscriber(socket, out);
+                        subscribers.add(subscriber);
+                        connections.execute(subscriber);
+                        while (in.readLine() != null) {
+                            // Wait for the client to disconnect.
+                        }
+                        return;
+                    }
+                    execute(words, out);
+                }
+            } finally {
+                if (subscriber != null) {
+                    subscriber.close();
+                }
+                socket.close();
+            }
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    private void execute(String[] words, PrintWriter out) {
+        try {
+            if ("devices".equals(words[0])) {
+                for (Map.Entry<String, DeviceType> device : new TreeMap<String, DeviceType>(directory).entrySet()) {
+                    out.println(LINE + device.getKey() + " " + device.getValue());
+                }
+            } else if ("refresh".equals(words[0])) {
+                refresh();
+            } else if ("call".equals(words[0]) && words.length == 3) {
+                out.println(LINE + call(words[1], words[2]));
+            } else {
+                out.println(ERR + "Unknown command: " + String.join(" ", words));
+                return;
+            }
+            out.println(OK);
+        } catch (Exception e) {
+            out.println(ERR + e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    private Object call(String deviceName, String methodName) throws Exception {
+        if (!directory.containsKey(deviceName)) {
+            throw new IllegalArgumentException("No registered device " + deviceName);
+        }
+
+        Remote stub = stub(deviceName);
+        Method method = remoteMethod(stub, methodName);
+        if (method == null) {
+            throw new IllegalArgumentException(deviceName + " has no method " + methodName + "()");
+        }
+
+        try {
+            return method.invoke(stub);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectException || cause instanceof NoSuchObjectException) {
+                // The stub did not reach the device, so the call never ran; the service may have restarted.
+                stubs.remove(deviceName);
+                try {
+                    return method.invoke(stub(deviceName));
+                } catch (InvocationTargetException retry) {
+                    cause = retry.getCause();
+                }
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Finds a method without parameters declared by one of a stub's remote interfaces, so that methods of Object
+     * and of the stub's own class, such as wait() or notify(), cannot be called.
+     *
+     * @param stub - The device stub.
+     * @param methodName - The method name.
+     * @return The method, or null if no remote interface declares it.
+     */
+    private static Method remoteMethod(Remote stub, String methodName) {
+        for (Class<?> type = stub.getClass(); type != null; type = type.getSuperclass()) {
+            for (Class<?> iface : type.getInterfaces()) {
+                if (iface != Remote.class && Remote.class.isAssignableFrom(iface)) {
+                    try {
+                        return iface.getMethod(methodName);
+                    } catch (NoSuchMethodException e) {
+                        // Try the next interface.
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private Remote stub(String deviceName) throws RemoteException, NotBoundException, MalformedURLException {
+        Remote stub = stubs.get(deviceName);
+        if (stub == null) {
+            stub = Naming.lookup(envoySystem.getDevicePath(deviceName));
+            stubs.put(deviceName, stub);
+        }
+        return stub;
+    }
+
+    private void publish(String line) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(line);
+        }
+    }
+
+    /**
+     * Sends one command to a running daemon, with the token from the token file, and prints the response.
+     *
+     * @param port - The daemon's port.
+     * @param command - The command line.
+     * @return Whether the command succeeded.
+     * @throws IOException - If the token file could not be read or the daemon could not be reached.
+     */
+    public static boolean send(int port, String command) throws IOException {
+        String token = new String(Files.readAllBytes(TOKEN_FILE), StandardCharsets.UTF_8).trim();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            socket.setTcpNoDelay(true);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(token);
+            out.println(command);
+
+            boolean streaming = command.trim().equals("events");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(ERR)) {
+                    System.err.println(line.substring(ERR.length()));
+                    return false;
+                }
+                if (line.equals(OK)) {
+                    if (!streaming) {
+                        return true;
+                    }
+                    continue;
+                }
+                System.out.println(line.startsWith(LINE) ? line.substring(LINE.length()) : line);
+            }
+            return streaming;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: "serve" and a port, or a command for a running daemon.
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int first = 0;
+        if (args.length > 1 && "-p".equals(args[0])) {
+            port = Integer.parseInt(args[1]);
+            first = 2;
+        }
+
+        if (args.length == first) {
+            System.out.println("Usage: ClientDaemon serve [port] | [-p port] devices | refresh | events | call DEVICE METHOD");
+            System.exit(1);
+        }
+
+        try {
+            if ("serve".equals(args[first])) {
+                if (args.length > first + 1) {
+                    port = Integer.parseInt(args[first + 1]);
+                }
+
+                // Connect to the Envoy service once, for the lifetime of the daemon.
+                IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+                new ClientDaemon(envoySystem).serve(port);
+            } else {
+                StringBuilder command = new StringBuilder();
+                for (int i = first; i < args.length; i++) {
+                    command.append(i == first ? "" : " ").append(args[i]);
+                }
+                System.exit(send(port, command.toString()) ? 0 : 1);
+            }
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
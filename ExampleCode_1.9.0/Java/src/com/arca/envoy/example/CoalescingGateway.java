@@ -0,0 +1,314 @@
+package com.arca.envoy.example;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.arca.envoy.api.iface.IEnvoySystem;
+
+/**
+ * CoalescingGateway.
+ *
+ * This example demonstrates a local gateway that coalesces read-only queries
+ * from several processes. The POS application, a monitoring agent and a
+ * back-office sync often poll the same devices, and each poll otherwise
+ * becomes a separate serial transaction on the device link.
+ *
+ * The gateway runs its own RMI registry and re-exports the Envoy system and
+ * device objects through dynamic proxies:
+ *
+ *  - Queries on the allow-list (getStatus, getBagTotals, note tables, and so
+ *    on) are single-flight: concurrent identical calls share one device call
+ *  - A query result is served from a cache for a short time to live, so
+ *    back-to-back polls do not reach the device at all
+ *  - Every other method, including anything that changes device state or
+ *    has a side effect such as getLastNoteStatus(), is passed straight
+ *    through, never cached, and clears the cached queries of its device
+ *  - getDevicePath() returns the gateway's path for the device, so clients
+ *    keep using the gateway after discovery
+ *
+ * Clients only change the URL they look up, for example
+ * "//localhost:1199/envoy/system" instead of "//localhost/envoy/system".
+ *
+ * Usage:
+ *
+ *   CoalescingGateway [port] [ttl-ms]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service is necessary to run this example.
+ *
+ * See README for compilation and running instructions.
+ */
+public class CoalescingGateway {
+
+    private static final int DEFAULT_PORT = 1199;
+    private static final long DEFAULT_TTL_MS = 250;
+    private static final String SYSTEM_NAME = "envoy/system";
+    private static final String DEVICE_PREFIX = "envoy/device/";
+
+    /** Read-only queries that may be shared between callers. */
+    private static final Set<String> COALESCED_QUERIES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "getStatus",
+            "getBagTotals",
+            "getNoteTable",
+            "getRecyclerNoteTable",
+            "getNoteCount",
+            "getNoteCountByType",
+            "getCurrencyCode",
+            "getLifetimeTotals",
+            "getAuditPerformanceMeasurements",
+            "getAuditQPMeasurements",
+            "getSensorHealth",
+            "getRegisteredDeviceNames",
+            "getRegisteredDeviceInformation",
+            "isRegisteredDeviceName")));
+
+    /**
+     * A cached query result.
+     */
+    private static final class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Registry registry;
+    private final int port;
+    private final long ttlNanos;
+    private final Map<List<Object>, FutureTask<Object>> inFlight = new ConcurrentHashMap<List<Object>, FutureTask<Object>>();
+    private final Map<List<Object>, Entry> cache = new ConcurrentHashMap<List<Object>, Entry>();
+    private final Map<String, Remote> exported = new ConcurrentHashMap<String, Remote>();
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Creates a gateway with its own RMI registry.
+     *
+     * @param port - The port for the gateway's RMI registry.
+     * @param ttlMs - How long a query result is served from the cache, in milliseconds.
+     * @throws RemoteException - If the registry could not be created.
+     */
+    public CoalescingGateway(int port, long ttlMs) throws RemoteException {
+        this.registry = LocateRegistry.createRegistry(port);
+        this.port = port;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    /**
+     * Publishes the Envoy system object through the gateway.
+     *
+     * @param envoySystem - The Envoy system object from the Envoy service.
+     * @throws RemoteException - If the proxy could not be exported.
+     */
+    public void publish(final IEnvoySystem envoySystem) throws RemoteException {
+        IEnvoySystem proxy = (IEnvoySystem) Proxy.newProxyInstance(IEnvoySystem.class.getClassLoader(),
+                new Class<?>[] {IEnvoySystem.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getDevicePath".equals(method.getName())) {
+                            return publishDevice((String) args[0], envoySystem.getDevicePath((String) args[0]));
+                        }
+                        return call(SYSTEM_NAME, envoySystem, method, args);
+                    }
+                });
+
+        registry.rebind(SYSTEM_NAME, export(SYSTEM_NAME, proxy));
+    }
+
+    private String publishDevice(String deviceName, String devicePath)
+            throws RemoteException, MalformedURLException, NotBoundException {
+        if (devicePath == null) {
+            return null;
+        }
+
+        final String bindName = DEVICE_PREFIX + deviceName;
+        if (!exported.containsKey(bindName)) {
+            final Remote device = Naming.lookup(devicePath);
+
+            // Expose the same remote interfaces the device stub implements.
+            List<Class<?>> remoteInterfaces = new ArrayList<Class<?>>();
+            for (Class<?> iface : device.getClass().getInterfaces()) {
+                if (Remote.class.isAssignableFrom(iface)) {
+                    remoteInterfaces.add(iface);
+                }
+            }
+
+            Remote proxy = (Remote) Proxy.newProxyInstance(device.getClass().getClassLoader(),
+                    remoteInterfaces.toArray(new Class<?>[remoteInterfaces.size()]), new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            return call(bindName, device, method, args);
+                        }
+                    });
+
+            synchronized (exported) {
+                if (!exported.containsKey(bindName)) {
+                    registry.rebind(bindName, export(bindName, proxy));
+                }
+            }
+        }
+
+        return "//localhost:" + port + "/" + bindName;
+    }
+
+    private Remote export(String bindName, Remote proxy) throws RemoteException {
+        Remote stub = UnicastRemoteObject.exportObject(proxy, 0);
+        exported.put(bindName, proxy);
+        return stub;
+    }
+
+    private Object call(String target, final Object delegate, final Method method, final Object[] args)
+            throws Throwable {
+        if (!COALESCED_QUERIES.contains(method.getName())) {
+            // A command may change what the cached queries would report.
+            try {
+                return invoke(delegate, method, args);
+            } finally {
+                invalidate(target);
+            }
+        }
+
+        List<Object> key = new ArrayList<Object>();
+        key.add(target);
+        key.add(method.getName());
+        if (args != null) {
+            key.addAll(Arrays.asList(args));
+        }
+
+        Entry cached = cache.get(key);
+        if (cached != null && cached.expiresAt - System.nanoTime() > 0) {
+            return cached.value;
+        }
+
+        // Single flight: the first caller runs the query, everyone else waits for its result.
+        FutureTask<Object> query = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return invoke(delegate, method, args);
+            }
+        });
+        FutureTask<Object> running = inFlight.putIfAbsent(key, query);
+        if (running == null) {
+            // Only the flight leader caches, and only if no command invalidated the target meanwhile.
+            long generation = generation(target).get();
+            try {
+                query.run();
+            } finally {
+                inFlight.remove(key, query);
+            }
+            try {
+                Object value = query.get();
+                if (generation(target).get() == generation) {
+                    cache.put(key, new Entry(value, System.nanoTime() + ttlNanos));
+                }
+                return value;
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void invalidate(String target) {
+        generation(target).incrementAndGet();
+        for (List<Object> key : cache.keySet()) {
+            if (target.equals(key.get(0))) {
+                cache.remove(key);
+            }
+        }
+
+        // Later callers must not join a query that started before the command.
+        for (List<Object> key : inFlight.keySet()) {
+            if (target.equals(key.get(0))) {
+                inFlight.remove(key);
+            }
+        }
+    }
+
+    private AtomicLong generation(String target) {
+        AtomicLong generation = generations.get(target);
+        if (generation == null) {
+            generations.putIfAbsent(target, new AtomicLong());
+            generation = generations.get(target);
+        }
+        return generation;
+    }
+
+    private static Object invoke(Object delegate, Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the gateway registry port and the cache time to live.
+     */
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        long ttlMs = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_TTL_MS;
+
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            CoalescingGateway gateway = new CoalescingGateway(port, ttlMs);
+            gateway.publish(envoySystem);
+
+            System.out.println("Gateway ready at //localhost:" + port + "/" + SYSTEM_NAME
+                    + " (cache TTL " + ttlMs + " ms); press Ctrl+C to exit.");
+            Thread.currentThread().join();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,373 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.enumtypes.EnvoyErrorEnum;
+import com.arca.envoy.api.iface.EBDSDispenseByDenomPrm;
+import com.arca.envoy.api.iface.EBDSExtendedNoteInhibitsPrm;
+import com.arca.envoy.api.iface.EBDSFloatByDenomPrm;
+import com.arca.envoy.api.iface.EBDSRecyclerNoteEnablesPrm;
+import com.arca.envoy.api.iface.FujitsuDispenseByPositionPrm;
+import com.arca.envoy.api.iface.ICS1oneDevice;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.IFujitsuDevice;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * CommandValidation.
+ *
+ * This example demonstrates rejecting invalid commands before they reach the
+ * Envoy service. Requests such as dispensing a quantity of zero, floating a
+ * denomination that is not enabled for recycling, or setting a currency the
+ * CS1one does not support make a full round trip to the device only to fail
+ * with BADPARAMETER, and hold the device link while they do.
+ *
+ * Each device is described by a capability model, read from the device once
+ * and kept up to date as the application changes it:
+ *
+ *  - SCR: the note table, the recycler note table, and the denominations
+ *    enabled for recycling
+ *  - CS1one: the supported currencies (EUR, GBP and USD)
+ *  - Fujitsu dispensers: the most notes one dispense command may move (20
+ *    for the F53, 99 for the F400)
+ *
+ * The validating wrappers check every command against the model and throw an
+ * InvalidCommandException, carrying BADPARAMETER like the service would, in
+ * microseconds and without an RMI call. Valid commands are passed through.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered MEI SCR.
+ *
+ * See README for compilation and running instructions.
+ */
+public class CommandValidation {
+
+    /** The most notes one dispense command may move, by Fujitsu dispenser type. */
+    private static final Map<DeviceType, Integer> FUJITSU_DISPENSE_LIMITS = new EnumMap<DeviceType, Integer>(DeviceType.class);
+
+    static {
+        FUJITSU_DISPENSE_LIMITS.put(DeviceType.FUJITSU_F53, 20);
+        FUJITSU_DISPENSE_LIMITS.put(DeviceType.FUJITSU_F400, 99);
+    }
+
+    /** The currencies the CS1one accepts. */
+    private static final Set<CurCodeEnum> CS1ONE_CURRENCIES =
+            Collections.unmodifiableSet(EnumSet.of(CurCodeEnum.EUR, CurCodeEnum.GBP, CurCodeEnum.USD));
+
+    /**
+     * Thrown when a command is rejected locally.
+     */
+    public static final class InvalidCommandException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidCommandException(String message) {
+            super(message);
+        }
+
+        /**
+         * Gets the error the Envoy service would have reported.
+         *
+         * @return BADPARAMETER.
+         */
+        public EnvoyErrorEnum getEnvoyError() {
+            return EnvoyErrorEnum.BADPARAMETER;
+        }
+    }
+
+    /**
+     * The capabilities of an SCR at one point in time.
+     */
+    public static final class SCRCapabilities {
+        private final Set<Denomination> noteTable;
+        private final Set<Denomination> recyclerNoteTable;
+        private final Set<Denomination> recycleEnabled;
+
+        SCRCapabilities(Set<Denomination> noteTable, Set<Denomination> recyclerNoteTable, Set<Denomination> recycleEnabled) {
+            this.noteTable = Collections.unmodifiableSet(noteTable);
+            this.recyclerNoteTable = Collections.unmodifiableSet(recyclerNoteTable);
+            this.recycleEnabled = Collections.unmodifiableSet(recycleEnabled);
+        }
+
+        /**
+         * Gets the denominations the SCR can accept.
+         *
+         * @return The note table.
+         */
+        public Set<Denomination> getNoteTable() {
+            return noteTable;
+        }
+
+        /**
+         * Gets the denominations the SCR can recycle.
+         *
+         * @return The recycler note table.
+         */
+        public Set<Denomination> getRecyclerNoteTable() {
+            return recyclerNoteTable;
+        }
+
+        /**
+         * Gets the denominations currently enabled for recycling.
+         *
+         * @return The enabled denominations.
+         */
+        public Set<Denomination> getRecycleEnabled() {
+            return recycleEnabled;
+        }
+    }
+
+    /**
+     * An SCR whose commands are validated against its capabilities first.
+     */
+    public static final class ValidatedSCR {
+        private final ISCRDevice scr;
+        private volatile SCRCapabilities capabilities;
+
+        /**
+         * Reads the SCR's capabilities. Until the application sets the recycler
+         * enables, every recyclable denomination is assumed to be enabled.
+         *
+         * @param scr - The SCR.
+         * @throws RemoteException - If the note tables could not be read.
+         */
+        public ValidatedSCR(ISCRDevice scr) throws RemoteException {
+            this.scr = scr;
+            refresh();
+        }
+
+        /**
+         * Reads the note tables again, for example after a firmware or currency change.
+         *
+         * @throws RemoteException - If the note tables could not be read.
+         */
+        public void refresh() throws RemoteException {
+            Set<Denomination> recyclable = new HashSet<Denomination>(scr.getRecyclerNoteTable().getNoteTable());
+            SCRCapabilities previous = capabilities;
+            Set<Denomination> enabled = new HashSet<Denomination>(recyclable);
+            if (previous != null) {
+                enabled.retainAll(previous.getRecycleEnabled());
+            }
+            capabilities = new SCRCapabilities(new HashSet<Denomination>(scr.getNoteTable().getNoteTable()), recyclable, enabled);
+        }
+
+        /**
+         * Gets the cached capabilities.
+         *
+         * @return The capabilities.
+         */
+        public SCRCapabilities getCapabilities() {
+            return capabilities;
+        }
+
+        /**
+         * Dispenses recycled notes of one denomination.
+         *
+         * @param denom - The denomination.
+         * @param count - The number of notes, at least 1.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        public void dispenseByDenom(Denomination denom, int count) throws RemoteException {
+            checkRecycled("dispense", denom, count);
+            scr.dispenseByDenom(new EBDSDispenseByDenomPrm(denom, count));
+        }
+
+        /**
+         * Moves recycled notes of one denomination to the cashbox.
+         *
+         * @param denom - The denomination.
+         * @param count - The number of notes, at least 1.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        public void floatByDenom(Denomination denom, int count) throws RemoteException {
+            checkRecycled("float", denom, count);
+            scr.floatByDenom(new EBDSFloatByDenomPrm(denom, count));
+        }
+
+        /**
+         * Inhibits acceptance of denominations.
+         *
+         * @param inhibited - The denominations to inhibit, all from the note table.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        public void setNoteInhibits(List<Denomination> inhibited) throws RemoteException {
+            checkContained("inhibit", inhibited, capabilities.getNoteTable(), "note table");
+            scr.setNoteInhibits(new EBDSExtendedNoteInhibitsPrm(new ArrayList<Denomination>(inhibited)));
+        }
+
+        /**
+         * Enables denominations for recycling, and records them in the capabilities.
+         *
+         * @param enabled - The denominations to recycle, all from the recycler note table.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        public void setRecyclerNoteEnables(List<Denomination> enabled) throws RemoteException {
+            SCRCapabilities current = capabilities;
+            checkContained("recycle", enabled, current.getRecyclerNoteTable(), "recycler note table");
+            scr.setRecyclerNoteEnables(new EBDSRecyclerNoteEnablesPrm(new ArrayList<Denomination>(enabled)));
+            capabilities = new SCRCapabilities(current.getNoteTable(), current.getRecyclerNoteTable(),
+                    new HashSet<Denomination>(enabled));
+        }
+
+        private void checkRecycled(String command, Denomination denom, int count) {
+            if (count < 1) {
+                throw new InvalidCommandException("Cannot " + command + " " + count + " notes.");
+            }
+            if (!capabilities.getRecycleEnabled().contains(denom)) {
+                throw new InvalidCommandException("Cannot " + command + " " + denom + ": not enabled for recycling.");
+            }
+        }
+
+        private static void checkContained(String command, List<Denomination> denoms, Set<Denomination> allowed, String table) {
+            for (Denomination denom : denoms) {
+                if (!allowed.contains(denom)) {
+                    throw new InvalidCommandException("Cannot " + command + " " + denom + ": not in the " + table + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the CS1one currency after checking that the CS1one supports it.
+     *
+     * @param cs1one - The CS1one.
+     * @param currencyCode - The currency.
+     * @throws RemoteException - If the Envoy service could not be reached.
+     */
+    public static void setCurrencyCode(ICS1oneDevice cs1one, CurCodeEnum currencyCode) throws RemoteException {
+        if (!CS1ONE_CURRENCIES.contains(currencyCode)) {
+            throw new InvalidCommandException("The CS1one does not support " + currencyCode + ".");
+        }
+        cs1one.setCurrencyCode(currencyCode);
+    }
+
+    /**
+     * Checks a Fujitsu dispense by position against the dispenser's per-command limit.
+     *
+     * @param deviceType - The dispenser type.
+     * @param posToCount - The number of notes to dispense from each cassette position.
+     */
+    public static void checkDispenseByPosition(DeviceType deviceType, Map<Integer, Integer> posToCount) {
+        int total = 0;
+        for (Map.Entry<Integer, Integer> position : posToCount.entrySet()) {
+            if (position.getKey() < 1) {
+                throw new InvalidCommandException("Invalid cassette position " + position.getKey() + ".");
+            }
+            if (position.getValue() < 0) {
+                throw new InvalidCommandException("Cannot dispense " + position.getValue() + " notes from position " + position.getKey() + ".");
+            }
+            total += position.getValue();
+        }
+        if (total == 0) {
+            throw new InvalidCommandException("Nothing to dispense.");
+        }
+
+        Integer limit = FUJITSU_DISPENSE_LIMITS.get(deviceType);
+        if (limit != null && total > limit) {
+            throw new InvalidCommandException("The " + deviceType + " dispenses at most " + limit + " notes per command, not " + total + ".");
+        }
+    }
+
+    /**
+     * Gets the most notes one dispense command may move on a Fujitsu dispenser.
+     *
+     * @param deviceType - The dispenser type.
+     * @return The limit, or Integer.MAX_VALUE if the type has no known limit.
+     */
+    public static int getDispenseLimit(DeviceType deviceType) {
+        Integer limit = FUJITSU_DISPENSE_LIMITS.get(deviceType);
+        return limit == null ? Integer.MAX_VALUE : limit;
+    }
+
+    /**
+     * Dispenses by position after checking the dispenser's per-command limit.
+     *
+     * @param device - The dispenser.
+     * @param deviceType - The dispenser type.
+     * @param posToCount - The number of notes to dispense from each cassette position.
+     * @throws RemoteException - If the Envoy service could not be reached.
+     */
+    public static void dispenseByPosition(IFujitsuDevice device, DeviceType deviceType, HashMap<Integer, Integer> posToCount)
+            throws RemoteException {
+        checkDispenseByPosition(deviceType, posToCount);
+        device.dispenseByPosition(new FujitsuDispenseByPositionPrm(posToCount));
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String devicePath = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                    devicePath = envoySystem.getDevicePath(deviceName);
+                    break;
+                }
+            }
+
+            if (devicePath == null) {
+                System.out.println("No registered SCR found.");
+                System.exit(1);
+            }
+
+            ValidatedSCR scr = new ValidatedSCR((ISCRDevice) Naming.lookup(devicePath));
+            System.out.println("Recyclable: " + scr.getCapabilities().getRecyclerNoteTable());
+
+            // Recycle only USD$1, then try two commands the SCR would reject.
+            List<Denomination> recycled = new ArrayList<Denomination>();
+            recycled.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1));
+            scr.setRecyclerNoteEnables(recycled);
+
+            long start = System.nanoTime();
+            try {
+                scr.dispenseByDenom(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1), 0);
+            } catch (InvalidCommandException e) {
+                System.out.println(e.getEnvoyError() + ": " + e.getMessage());
+            }
+            try {
+                scr.floatByDenom(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 20), 5);
+            } catch (InvalidCommandException e) {
+                System.out.println(e.getEnvoyError() + ": " + e.getMessage());
+            }
+            System.out.println("Rejected both in " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " us.");
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
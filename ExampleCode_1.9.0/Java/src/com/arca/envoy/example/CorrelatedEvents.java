@@ -0,0 +1,269 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.EBDSDispenseByDenomPrm;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.EventEnum;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.iface.NoteEventData;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * CorrelatedEvents.
+ *
+ * This example demonstrates routing device events to the transaction that
+ * caused them. NoteEventData carries the note but nothing that identifies
+ * the command or transaction behind it, so with several devices and
+ * overlapping transactions a handler otherwise searches its pending
+ * transactions for every event, or keeps one shared field per event type
+ * as the SCR example does.
+ *
+ * A device runs one command at a time, and every event names its device.
+ * The router therefore keeps one index entry per device for the transaction
+ * currently running on it, and one per correlation ID:
+ *
+ *  - begin() opens a transaction on a device under a correlation ID, given
+ *    by the application or generated
+ *  - Every event from the device, such as DISPENSE_STARTED, NOTE_PRESENTED,
+ *    DISPENSE_COMPLETE or FLOAT_COMPLETE, is delivered to that transaction's
+ *    handler with its correlation ID, found with one hash lookup
+ *  - await() waits for an event type within a transaction, for example
+ *    DISPENSE_COMPLETE after dispenseByDenom()
+ *  - Events from a device with no open transaction, such as a note
+ *    inserted between transactions, go to a separate handler
+ *
+ * Only one transaction can be open per device, matching the one command the
+ * device runs at a time.
+ *
+ * Routing by device name is not the same as an ID stamped on each event by
+ * the service: an event is attributed to whichever transaction is open on
+ * its device when it arrives. A late FLOAT_COMPLETE or DISPENSE_COMPLETE
+ * from a previous transaction that arrives after the next begin() on that
+ * device is attributed to the new transaction. End a transaction only after
+ * its last expected event, for example by awaiting it.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered MEI SCR with USD$1 notes in the recycler.
+ *
+ * See README for compilation and running instructions.
+ */
+public class CorrelatedEvents implements IEnvoyEventHandler {
+
+    private static final long DISPENSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Receives the events of a transaction.
+     */
+    public interface TransactionHandler {
+        /**
+         * Handles an event.
+         *
+         * @param correlationId - The transaction's correlation ID.
+         * @param event - The event.
+         */
+        void handleEvent(String correlationId, Event event);
+    }
+
+    /**
+     * A transaction open on a device.
+     */
+    private static final class Route {
+        private final String correlationId;
+        private final String deviceName;
+        private final TransactionHandler handler;
+        private final Set<EventEnum> seen = EnumSet.noneOf(EventEnum.class);
+
+        Route(String correlationId, String deviceName, TransactionHandler handler) {
+            this.correlationId = correlationId;
+            this.deviceName = deviceName;
+            this.handler = handler;
+        }
+
+        synchronized void deliver(Event event) {
+            seen.add(event.getEventType());
+            notifyAll();
+        }
+
+        synchronized boolean await(EventEnum type, long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (!seen.contains(type)) {
+                long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Route> byDevice = new ConcurrentHashMap<String, Route>();
+    private final ConcurrentHashMap<String, Route> byCorrelationId = new ConcurrentHashMap<String, Route>();
+    private final IEnvoyEventHandler unmatched;
+
+    /**
+     * Creates a router.
+     *
+     * @param unmatched - Receives events from devices with no open transaction.
+     */
+    public CorrelatedEvents(IEnvoyEventHandler unmatched) {
+        this.unmatched = unmatched;
+    }
+
+    /**
+     * Opens a transaction on a device.
+     *
+     * @param deviceName - The logical device name.
+     * @param correlationId - The correlation ID, or null to generate one.
+     * @param handler - Receives the transaction's events, on the Envoy callback thread.
+     * @return The correlation ID.
+     */
+    public String begin(String deviceName, String correlationId, TransactionHandler handler) {
+        String id = correlationId == null ? UUID.randomUUID().toString() : correlationId;
+        Route route = new Route(id, deviceName, handler);
+
+        if (byCorrelationId.putIfAbsent(id, route) != null) {
+            throw new IllegalStateException("Correlation ID " + id + " is already in use.");
+        }
+        Route open = byDevice.putIfAbsent(deviceName, route);
+        if (open != null) {
+            byCorrelationId.remove(id, route);
+            throw new IllegalStateException(deviceName + " is busy with transaction " + open.correlationId + ".");
+        }
+        return id;
+    }
+
+    /**
+     * Waits for an event within a transaction. Events received since the transaction was opened count.
+     *
+     * @param correlationId - The correlation ID.
+     * @param type - The event type.
+     * @param timeoutMs - The longest to wait, in milliseconds.
+     * @return Whether the event was received.
+     * @throws InterruptedException - If interrupted while waiting.
+     */
+    public boolean await(String correlationId, EventEnum type, long timeoutMs) throws InterruptedException {
+        Route route = byCorrelationId.get(correlationId);
+        if (route == null) {
+            throw new IllegalStateException("No open transaction " + correlationId + ".");
+        }
+        return route.await(type, timeoutMs);
+    }
+
+    /**
+     * Closes a transaction. Later events from its device are unmatched until another transaction is opened.
+     *
+     * @param correlationId - The correlation ID.
+     */
+    public void end(String correlationId) {
+        Route route = byCorrelationId.remove(correlationId);
+        if (route != null) {
+            byDevice.remove(route.deviceName, route);
+        }
+    }
+
+    @Override
+    public void handleEnvoyEvent(Event evt) {
+        if (evt == null) {
+            return;
+        }
+
+        Route route = evt.getDeviceName() == null ? null : byDevice.get(evt.getDeviceName());
+        if (route == null) {
+            unmatched.handleEnvoyEvent(evt);
+            return;
+        }
+
+        // Record the event first, so await() sees it even if the handler throws.
+        route.deliver(evt);
+        route.handler.handleEvent(route.correlationId, evt);
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String scrName = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                    scrName = deviceName;
+                    break;
+                }
+            }
+
+            if (scrName == null) {
+                System.out.println("No registered SCR found.");
+                System.exit(1);
+            }
+
+            CorrelatedEvents router = new CorrelatedEvents(new IEnvoyEventHandler() {
+                @Override
+                public void handleEnvoyEvent(Event evt) {
+                    System.out.println("Unmatched event: " + evt.getDeviceName() + " " + evt.getEventType());
+                }
+            });
+            EnvoyEventListener listener = new EnvoyEventListener();
+            listener.registerHandler(router);
+
+            ISCRDevice scr = (ISCRDevice) Naming.lookup(envoySystem.getDevicePath(scrName));
+
+            String correlationId = router.begin(scrName, "payout-0001", new TransactionHandler() {
+                @Override
+                public void handleEvent(String correlationId, Event event) {
+                    String note = "";
+                    if (event.getEventData() instanceof NoteEventData) {
+                        note = " " + ((NoteEventData) event.getEventData()).getNote().getDenoms().get(0);
+                    }
+                    System.out.println("[" + correlationId + "] " + event.getEventType() + note);
+                }
+            });
+            try {
+                scr.dispenseByDenom(new EBDSDispenseByDenomPrm(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1), 1));
+                if (!router.await(correlationId, EventEnum.DISPENSE_COMPLETE, DISPENSE_TIMEOUT_MS)) {
+                    System.out.println("[" + correlationId + "] DISPENSE_COMPLETE not received.");
+                }
+            } finally {
+                router.end(correlationId);
+            }
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
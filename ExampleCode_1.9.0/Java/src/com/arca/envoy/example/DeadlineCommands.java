@@ -0,0 +1,476 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.enumtypes.CS1oneReplyCodes;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.enumtypes.EnvoyErrorEnum;
+import com.arca.envoy.api.iface.APICommandException;
+import com.arca.envoy.api.iface.ICS1oneDevice;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * DeadlineCommands.
+ *
+ * This example demonstrates deadline-aware command execution. Every device
+ * call is given a deadline, and failures are classified by their
+ * EnvoyErrorEnum code:
+ *
+ *  - COMMERROR and BADSTATE are retryable; the response acquisition may time
+ *    out, or the device may not have data available yet
+ *  - A RemoteException is retryable; the RMI connection may recover
+ *  - Every other code, such as BADPARAMETER, fails immediately
+ *
+ * Only idempotent queries are retried. Commands with a mechanical or
+ * financial effect, such as dispenses, are executed exactly once. Retries
+ * wait with jittered exponential backoff and are drawn from a per-device
+ * retry budget; once the budget is spent, further retries against that
+ * device wait for it to refill, so a device that keeps failing is not
+ * hammered by every caller at once. A query may also be hedged: if the
+ * first call stalls, a second identical call is issued from the same budget
+ * and the first answer wins. A call that has not finished by its
+ * deadline fails with a DeadlineExceededException, so a customer-facing
+ * operation finishes or fails within a known bound.
+ *
+ * The demonstration waits for a note on the first registered ARCA/CTS CS1one
+ * using a deadline, rather than polling getLastNoteStatus() indefinitely.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service is necessary to run this example.
+ *  - A registered ARCA/CTS CS1one via EnvoyHome is necessary to run this example.
+ *  - A single USD note.
+ *
+ * See README for compilation and running instructions.
+ */
+public class DeadlineCommands {
+
+    /**
+     * A single device call.
+     *
+     * @param <T> - The type of the call result.
+     */
+    public interface Command<T> {
+        /**
+         * Performs the device call.
+         *
+         * @return The call result.
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        T call() throws RemoteException;
+    }
+
+    /**
+     * Thrown when a command did not complete before its deadline.
+     */
+    public static class DeadlineExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates the exception.
+         *
+         * @param message - The detail message.
+         * @param cause - The last failure before the deadline, or null.
+         */
+        public DeadlineExceededException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * A token bucket limiting the retries issued against one device.
+     */
+    private static final class RetryBudget {
+        private final int capacity;
+        private final long refillNanos;
+        private double tokens;
+        private long lastRefill;
+
+        RetryBudget(int capacity, long refillNanos) {
+            this.capacity = capacity;
+            this.refillNanos = refillNanos;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Reserves one retry.
+         *
+         * @return The time to wait, in milliseconds, before the reserved retry may be issued.
+         */
+        synchronized long reserveMs() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / refillNanos);
+            lastRefill = now;
+
+            tokens--;
+            return tokens >= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis((long) (-tokens * refillNanos));
+        }
+
+        /**
+         * Returns a reserved retry that was not issued.
+         */
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        /**
+         * Takes one retry if the budget has one available now.
+         *
+         * @return True if a retry was taken.
+         */
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / refillNanos);
+            lastRefill = now;
+
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    private static final long BASE_BACKOFF_MS = 25;
+    private static final long MAX_BACKOFF_MS = 500;
+    private static final int RETRY_BUDGET = 10;
+    private static final long RETRY_REFILL_MS = 1000;
+
+    private final Map<String, RetryBudget> budgets = new ConcurrentHashMap<String, RetryBudget>();
+    private final Random jitter = new Random();
+    private final ExecutorService callers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "envoy-command");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Executes an idempotent query, retrying retryable failures within the
+     * device's retry budget until the deadline. A null result means the data
+     * is not available yet, and is retried like BADSTATE.
+     *
+     * @param deviceName - The logical device name the query is sent to.
+     * @param timeoutMs - The deadline, in milliseconds from now.
+     * @param query - The query.
+     * @param <T> - The type of the query result.
+     * @return The query result.
+     * @throws DeadlineExceededException - If the query did not succeed before the deadline.
+     */
+    public <T> T query(String deviceName, long timeoutMs, Command<T> query) throws DeadlineExceededException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Exception lastFailure = null;
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                T result = callBefore(deadline, query, lastFailure);
+                if (result != null) {
+                    return result;
+                }
+            } catch (RemoteException e) {
+                lastFailure = e;
+            } catch (APICommandException e) {
+                if (!isRetryable(e.getEnvoyError())) {
+                    throw e;
+                }
+                lastFailure = e;
+            }
+
+            // A spent budget delays the retry rather than adding to the load on the device.
+            RetryBudget budget = budgetFor(deviceName);
+            long budgetMs = budget.reserveMs();
+            try {
+                sleepBefore(deadline, Math.max(backoffMs(attempt), budgetMs), lastFailure);
+            } catch (DeadlineExceededException e) {
+                // The retry is abandoned, so it must not delay later callers.
+                budget.refund();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Executes an idempotent query like query(), but if the first call has not
+     * answered within the hedge delay, issues a second identical call and uses
+     * whichever answers first. The hedge is drawn from the device's retry
+     * budget and is skipped when the budget is spent, so hedging cannot add
+     * to the load on a device that is already struggling. This helps when a
+     * call stalls on the RMI connection; the Envoy service still runs device
+     * commands one at a time, so a hedge does not make a slow device faster.
+     * If every call in flight fails, the query continues with ordinary retries.
+     *
+     * @param deviceName - The logical device name the query is sent to.
+     * @param timeoutMs - The deadline, in milliseconds from now.
+     * @param hedgeMs - How long to wait for the first call before hedging, in milliseconds.
+     * @param query - The query.
+     * @param <T> - The type of the query result.
+     * @return The query result.
+     * @throws DeadlineExceededException - If the query did not succeed before the deadline.
+     */
+    public <T> T hedgedQuery(String deviceName, long timeoutMs, long hedgeMs, final Command<T> query)
+            throws DeadlineExceededException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long hedgeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(hedgeMs);
+        Callable<T> call = new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return query.call();
+            }
+        };
+
+        CompletionService<T> race = new ExecutorCompletionService<T>(callers);
+        List<Future<T>> calls = new ArrayList<Future<T>>();
+        calls.add(race.submit(call));
+        boolean hedged = false;
+        int running = 1;
+
+        try {
+            while (running > 0) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    throw new DeadlineExceededException("Query did not complete before its deadline.", null);
+                }
+
+                Future<T> answered = race.poll((hedged ? deadline : Math.min(deadline, hedgeAt)) - now, TimeUnit.NANOSECONDS);
+                if (answered == null) {
+                    if (!hedged && System.nanoTime() < deadline) {
+                        hedged = true;
+                        if (budgetFor(deviceName).tryAcquire()) {
+                            calls.add(race.submit(call));
+                            running++;
+                        }
+                    }
+                    continue;
+                }
+
+                running--;
+                try {
+                    T result = answered.get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof APICommandException && !isRetryable(((APICommandException) cause).getEnvoyError())) {
+                        throw (APICommandException) cause;
+                    }
+                    if (!(cause instanceof RemoteException) && !(cause instanceof APICommandException)) {
+                        throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while waiting for the query.", e);
+        } finally {
+            for (Future<T> future : calls) {
+                future.cancel(true);
+            }
+        }
+
+        // Every call failed or had nothing yet; retry normally with the time left.
+        return query(deviceName, Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), query);
+    }
+
+    /**
+     * Executes a non-idempotent command exactly once, with a deadline.
+     * <p>
+     * A command that misses its deadline may still complete on the device;
+     * the caller must reconcile the device state before issuing it again.
+     *
+     * @param timeoutMs - The deadline, in milliseconds from now.
+     * @param command - The command.
+     * @param <T> - The type of the command result.
+     * @return The command result.
+     * @throws DeadlineExceededException - If the command did not complete before the deadline.
+     * @throws RemoteException - If the Envoy service could not be reached.
+     */
+    public <T> T execute(long timeoutMs, Command<T> command) throws DeadlineExceededException, RemoteException {
+        return callBefore(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs), command, null);
+    }
+
+    /**
+     * Determines whether a failed call may succeed if repeated unchanged.
+     *
+     * @param error - The Envoy error code.
+     * @return True if the call may be retried.
+     */
+    public static boolean isRetryable(EnvoyErrorEnum error) {
+        if (error == null) {
+            return false;
+        }
+
+        switch (error) {
+            case COMMERROR:
+            case BADSTATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private <T> T callBefore(long deadline, final Command<T> command, Exception lastFailure)
+            throws DeadlineExceededException, RemoteException {
+        Future<T> future = callers.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return command.call();
+            }
+        });
+
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new DeadlineExceededException("Command did not complete before its deadline.", lastFailure);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while waiting for the command.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void sleepBefore(long deadline, long sleepMs, Exception lastFailure) throws DeadlineExceededException {
+        long remaining = deadline - System.nanoTime();
+        if (TimeUnit.MILLISECONDS.toNanos(sleepMs) >= remaining) {
+            throw new DeadlineExceededException("No time left to retry before the deadline.", lastFailure);
+        }
+
+        try {
+            Thread.sleep(sleepMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while backing off.", e);
+        }
+    }
+
+    private long backoffMs(int attempt) {
+        // Full jitter: anywhere between zero and the exponential ceiling.
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        synchronized (jitter) {
+            return (long) (jitter.nextDouble() * ceiling);
+        }
+    }
+
+    private RetryBudget budgetFor(String deviceName) {
+        RetryBudget budget = budgets.get(deviceName);
+        if (budget == null) {
+            budgets.putIfAbsent(deviceName, new RetryBudget(RETRY_BUDGET, TimeUnit.MILLISECONDS.toNanos(RETRY_REFILL_MS)));
+            budget = budgets.get(deviceName);
+        }
+        return budget;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            // Locate the first registered ARCA/CTS CS1one bill acceptor.
+            String cs1oneName = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.CS1ONE) {
+                    cs1oneName = deviceName;
+                    break;
+                }
+            }
+
+            if (cs1oneName == null) {
+                System.out.println("Could not find a registered CS1one ... Exiting");
+                System.exit(1);
+            }
+
+            final ICS1oneDevice cs1one = (ICS1oneDevice) Naming.lookup(envoySystem.getDevicePath(cs1oneName));
+            DeadlineCommands commands = new DeadlineCommands();
+
+            // A status query is idempotent, so it may be hedged after 250 ms and retried within two seconds.
+            CS1oneReplyCodes status = commands.hedgedQuery(cs1oneName, 2000, 250, new Command<CS1oneReplyCodes>() {
+                @Override
+                public CS1oneReplyCodes call() throws RemoteException {
+                    return cs1one.getStatus();
+                }
+            });
+            System.out.println("CS1one status: " + status);
+
+            // Enabling the acceptor changes device state, so it is attempted exactly once.
+            commands.execute(2000, new Command<Void>() {
+                @Override
+                public Void call() throws RemoteException {
+                    cs1one.enableDevice("Enable");
+                    return null;
+                }
+            });
+
+            // No note yet (BADSTATE or a null denomination) and COMMERROR are retried until the note arrives or thirty seconds pass.
+            System.out.println("Please insert a note.");
+            Denomination acceptedNote = commands.query(cs1oneName, 30000, new Command<Denomination>() {
+                @Override
+                public Denomination call() throws RemoteException {
+                    return cs1one.getLastNoteStatus().getLastDenom();
+                }
+            });
+            System.out.println("Accepted note: " + acceptedNote);
+
+            commands.execute(2000, new Command<Void>() {
+                @Override
+                public Void call() throws RemoteException {
+                    cs1one.enableDevice("Disable");
+                    return null;
+                }
+            });
+
+        } catch (DeadlineExceededException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,427 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.EBDSDispenseByDenomPrm;
+import com.arca.envoy.api.iface.EBDSGetNoteTableRsp;
+import com.arca.envoy.api.iface.EBDSGetRecyclerNoteTableRsp;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.EventEnum;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.iface.NoteEventData;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * DeviceSessions.
+ *
+ * This example demonstrates running many devices from one process. The
+ * single-device examples keep their transaction state in static fields, so a
+ * JVM can drive exactly one device of each type. Here each device is driven
+ * by a DeviceSession:
+ *
+ *  - Each session runs its flow on its own thread, created from a pluggable
+ *    ThreadFactory
+ *  - Each session has its own event mailbox; the runtime routes every Envoy
+ *    event to the session owning the logical device name the event carries
+ *  - Transaction state lives in session fields rather than statics
+ *  - Sub-operations are forked with forkAll(), which waits for all of them
+ *    and cancels the remaining ones as soon as one fails
+ *
+ * The examples are compiled for Java 8, so sessions default to small-stack
+ * daemon platform threads, which comfortably covers hundreds of lanes. On
+ * Java 21 or later, Thread.ofVirtual().factory() can be passed to the
+ * runtime instead without changing any session code.
+ *
+ * The demonstration runs the SCR escrow, recycle and dispense flow on every
+ * registered MEI SCR bill recycler at the same time.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service is necessary to run this example.
+ *  - One or more registered MEI SCRs via EnvoyHome are necessary to run this example.
+ *  - A USD$1 bill per SCR is necessary to run this example.
+ *
+ * See README for compilation and running instructions.
+ */
+public class DeviceSessions implements IEnvoyEventHandler {
+
+    /** Stack size for session threads; flows are shallow, so the default is wasteful at hundreds of lanes. */
+    private static final long SESSION_STACK_SIZE = 256 * 1024;
+
+    /**
+     * A flow driving a single device, with its own state and event mailbox.
+     */
+    public abstract static class DeviceSession implements Runnable {
+
+        private final String deviceName;
+        private final BlockingQueue<Event> mailbox = new LinkedBlockingQueue<Event>();
+        private DeviceSessions runtime;
+
+        /**
+         * Creates a session for a device.
+         *
+         * @param deviceName - The logical device name of the device this session owns.
+         */
+        protected DeviceSession(String deviceName) {
+            this.deviceName = deviceName;
+        }
+
+        /**
+         * Gets the logical device name of the device this session owns.
+         *
+         * @return The logical device name.
+         */
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        /**
+         * Runs the device flow. Called once, on the session's own thread.
+         *
+         * @throws Exception - If the flow fails; the session ends and the failure is reported.
+         */
+        protected abstract void flow() throws Exception;
+
+        @Override
+        public final void run() {
+            try {
+                flow();
+            } catch (InterruptedException e) {
+                System.out.println(deviceName + ": session interrupted.");
+            } catch (Exception e) {
+                System.out.println(deviceName + ": session failed.");
+                e.printStackTrace();
+            } finally {
+                runtime.closed(this);
+            }
+        }
+
+        /**
+         * Waits for the next event of one of the given types from this session's device.
+         * <p>
+         * Events of other types received in the meantime are passed to onEvent() and dropped.
+         *
+         * @param timeoutMs - The maximum time to wait, in milliseconds.
+         * @param types - The event types to wait for.
+         * @return The event, or null if none arrived in time.
+         * @throws InterruptedException - If the session is stopped while waiting.
+         */
+        protected Event awaitEvent(long timeoutMs, EventEnum... types) throws InterruptedException {
+            EnumSet<EventEnum> wanted = EnumSet.noneOf(EventEnum.class);
+            for (EventEnum type : types) {
+                wanted.add(type);
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (true) {
+                Event event = mailbox.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (event == null || wanted.contains(event.getEventType())) {
+                    return event;
+                }
+                onEvent(event);
+            }
+        }
+
+        /**
+         * Handles an event that the flow is not currently waiting for.
+         *
+         * @param event - The Envoy event.
+         */
+        protected void onEvent(Event event) {
+            System.out.println(deviceName + ": event received: " + event.getEventType());
+        }
+
+        /**
+         * Runs sub-operations concurrently and waits for all of them.
+         * <p>
+         * If any sub-operation fails, the others are cancelled and the first
+         * failure is thrown. Results are returned in the order the tasks were given.
+         *
+         * @param tasks - The sub-operations.
+         * @param <T> - The type of the sub-operation results.
+         * @return The sub-operation results.
+         * @throws ExecutionException - If a sub-operation failed.
+         * @throws InterruptedException - If the session is stopped while waiting.
+         */
+        protected <T> List<T> forkAll(List<Callable<T>> tasks) throws ExecutionException, InterruptedException {
+            ExecutorCompletionService<T> completion = new ExecutorCompletionService<T>(runtime.forks);
+            List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+            try {
+                for (Callable<T> task : tasks) {
+                    futures.add(completion.submit(task));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    // Surfaces the first failure as soon as it happens.
+                    completion.take().get();
+                }
+
+                List<T> results = new ArrayList<T>(futures.size());
+                for (Future<T> future : futures) {
+                    results.add(future.get());
+                }
+                return results;
+            } finally {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        void deliver(Event event) {
+            mailbox.offer(event);
+        }
+    }
+
+    private final ThreadFactory sessionThreads;
+    private final ExecutorService forks;
+    private final Map<String, DeviceSession> sessions = new ConcurrentHashMap<String, DeviceSession>();
+    private final Map<String, Thread> threads = new ConcurrentHashMap<String, Thread>();
+
+    /**
+     * Creates a session runtime using small-stack daemon platform threads.
+     */
+    public DeviceSessions() {
+        this(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(null, r, "envoy-session", SESSION_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates a session runtime.
+     *
+     * @param sessionThreads - Creates the threads that session flows and their sub-operations run on.
+     */
+    public DeviceSessions(ThreadFactory sessionThreads) {
+        this.sessionThreads = sessionThreads;
+        this.forks = Executors.newCachedThreadPool(sessionThreads);
+    }
+
+    /**
+     * Starts a session. At most one session may own a device at a time.
+     *
+     * @param session - The session.
+     * @throws IllegalStateException - If another session already owns the device.
+     */
+    public void start(DeviceSession session) {
+        session.runtime = this;
+        if (sessions.putIfAbsent(session.getDeviceName(), session) != null) {
+            throw new IllegalStateException("A session is already running for " + session.getDeviceName());
+        }
+
+        Thread thread = sessionThreads.newThread(session);
+        thread.setName("envoy-session-" + session.getDeviceName());
+        threads.put(session.getDeviceName(), thread);
+        thread.start();
+    }
+
+    /**
+     * Stops the session owning a device, if any.
+     *
+     * @param deviceName - The logical device name.
+     */
+    public void stop(String deviceName) {
+        Thread thread = threads.get(deviceName);
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits for every running session to end.
+     *
+     * @throws InterruptedException - If interrupted while waiting.
+     */
+    public void awaitAll() throws InterruptedException {
+        for (Thread thread : threads.values()) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Routes an Envoy event to the session owning its device.
+     *
+     * @param event - The Envoy event.
+     */
+    @Override
+    public void handleEnvoyEvent(Event event) {
+        if (event == null) {
+            return;
+        }
+
+        DeviceSession session = sessions.get(event.getDeviceName());
+        if (session != null) {
+            session.deliver(event);
+        }
+    }
+
+    private void closed(DeviceSession session) {
+        sessions.remove(session.getDeviceName(), session);
+        threads.remove(session.getDeviceName());
+    }
+
+    /**
+     * The SCR escrow, recycle and dispense flow, with its state held per session.
+     */
+    private static final class SCRSession extends DeviceSession {
+
+        private static final long CUSTOMER_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+        private static final long DEVICE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+        private final ISCRDevice scr;
+        private final CountDownLatch ready;
+        private Denomination note;
+
+        SCRSession(String deviceName, ISCRDevice scr, CountDownLatch ready) {
+            super(deviceName);
+            this.scr = scr;
+            this.ready = ready;
+        }
+
+        @Override
+        protected void flow() throws Exception {
+            try {
+                prepare();
+            } finally {
+                ready.countDown();
+            }
+
+            Event escrowed = awaitEvent(CUSTOMER_TIMEOUT_MS, EventEnum.ESCROWED);
+            if (escrowed == null) {
+                System.out.println(getDeviceName() + ": no bill inserted.");
+                scr.enableDevice(false);
+                return;
+            }
+            note = noteOf(escrowed);
+            System.out.println(getDeviceName() + ": bill escrowed: " + note);
+
+            scr.recycleBill();
+            if (awaitEvent(DEVICE_TIMEOUT_MS, EventEnum.STACKED) == null) {
+                System.out.println(getDeviceName() + ": bill was not stacked.");
+                return;
+            }
+
+            scr.dispenseByDenom(new EBDSDispenseByDenomPrm(note, 1));
+            if (awaitEvent(CUSTOMER_TIMEOUT_MS, EventEnum.NOTE_RETRIEVED) != null) {
+                System.out.println(getDeviceName() + ": bill retrieved: " + note);
+            }
+
+            scr.enableDevice(false);
+        }
+
+        private void prepare() throws Exception {
+            scr.mechaReset();
+
+            // The two note tables are independent reads, so fetch them together.
+            List<Callable<Integer>> reads = new ArrayList<Callable<Integer>>();
+            reads.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws RemoteException {
+                    EBDSGetNoteTableRsp noteTable = scr.getNoteTable();
+                    return noteTable.getNoteTable().size();
+                }
+            });
+            reads.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws RemoteException {
+                    EBDSGetRecyclerNoteTableRsp recyclerNoteTable = scr.getRecyclerNoteTable();
+                    return recyclerNoteTable.getNoteTable().size();
+                }
+            });
+            List<Integer> sizes = forkAll(reads);
+            System.out.println(getDeviceName() + ": " + sizes.get(0) + " notes, " + sizes.get(1) + " recyclable.");
+
+            scr.enableDevice(true);
+        }
+
+        private static Denomination noteOf(Event event) {
+            return ((NoteEventData) event.getEventData()).getNote().getDenoms().get(0);
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            // One listener feeds every session.
+            DeviceSessions runtime = new DeviceSessions();
+            EnvoyEventListener eel = new EnvoyEventListener();
+            eel.registerHandler(runtime);
+
+            // Find every registered MEI SCR bill recycler.
+            List<String> scrNames = new ArrayList<String>();
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                    scrNames.add(deviceName);
+                }
+            }
+
+            if (scrNames.isEmpty()) {
+                System.out.println("Could not find a registered SCR ... Exiting");
+                System.exit(1);
+            }
+
+            // Start one session per SCR.
+            CountDownLatch ready = new CountDownLatch(scrNames.size());
+            for (String deviceName : scrNames) {
+                ISCRDevice scr = (ISCRDevice) Naming.lookup(envoySystem.getDevicePath(deviceName));
+                runtime.start(new SCRSession(deviceName, scr, ready));
+            }
+
+            ready.await();
+            System.out.println("Please insert a USD$1 bill into each SCR.");
+            runtime.awaitAll();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // Demonstration complete.
+        System.exit(0);
+    }
+}
@@ -0,0 +1,379 @@
+package com.arca.envoy.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.NoteEventData;
+
+/**
+ * EventJournal.
+ *
+ * This example demonstrates recording Envoy events to a durable journal and
+ * replaying them later. Events delivered to an IEnvoyEventHandler are
+ * normally gone once handled, so a misbehaving lane cannot be reproduced.
+ * A journal is an opt-in handler wrapper that appends every Event, together
+ * with its receive timestamp, to memory-mapped segment files:
+ *
+ *  - Each record is a 4-byte length, an 8-byte receive timestamp in
+ *    nanoseconds since the epoch, and the serialized Event, including its
+ *    NoteEventData
+ *  - A length of zero marks the end of the records in a segment
+ *  - When a segment is full, the journal rotates to a new segment, and the
+ *    oldest segments beyond the configured count are deleted
+ *
+ * The records are not a compact field-by-field encoding. Writing the event
+ * type, device name and note fields directly would be far smaller, but
+ * replay has to hand real Event objects to the application's handler, and
+ * the Envoy API offers no way to create an Event or a NoteEventData: both
+ * have getters only. Java serialization is the only way to rebuild them, so
+ * each Event is written as its own serialization stream. That repeats the
+ * stream header and class descriptors in every record, in exchange for any
+ * record being decodable on its own.
+ *
+ * A journal can be replayed into any IEnvoyEventHandler, at the original
+ * speed or faster, so the event sequence of a production incident can be
+ * pushed through the application's own handler as a repeatable load test.
+ * A record torn by a crash while it was written ends its segment; replay
+ * continues with the next segment. A pause between events longer than
+ * MAX_REPLAY_GAP_MS, such as the time between two recording sessions, is
+ * shortened to MAX_REPLAY_GAP_MS.
+ *
+ * Usage:
+ *
+ *   EventJournal record &lt;directory&gt;
+ *   EventJournal replay &lt;directory&gt; [speed]
+ *
+ * Recording requires a running Envoy service. Replaying prints each event
+ * at its original spacing divided by the speed (default 1).
+ *
+ * See README for compilation and running instructions.
+ */
+public class EventJournal implements IEnvoyEventHandler {
+
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 4 + 8;
+    private static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int DEFAULT_SEGMENTS_KEPT = 8;
+    private static final long MAX_REPLAY_GAP_MS = 5000;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int segmentsKept;
+    private final IEnvoyEventHandler delegate;
+
+    private final long epochNanosAtStart = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long nanoTimeAtStart = System.nanoTime();
+
+    private final ByteArrayOutputStream encoding = new ByteArrayOutputStream(512);
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+
+    /**
+     * Creates a journal that records events and then passes them to a handler.
+     *
+     * @param directory - The directory the segment files are written to.
+     * @param segmentBytes - The size of each segment file.
+     * @param segmentsKept - The number of segment files kept before the oldest is deleted.
+     * @param delegate - The handler events are passed to after recording; may be null.
+     * @throws IOException - If the first segment could not be created.
+     */
+    public EventJournal(File directory, int segmentBytes, int segmentsKept, IEnvoyEventHandler delegate)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentsKept = segmentsKept;
+        this.delegate = delegate;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        // Continue numbering after any segments already present.
+        File[] existing = segments(directory);
+        segmentNumber = existing.length == 0 ? 0 : numberOf(existing[existing.length - 1]);
+        rotate();
+    }
+
+    /**
+     * Creates a journal with default segment sizing, if journaling is enabled.
+     * <p>
+     * Journaling is enabled by setting the envoy.journal.dir system property.
+     *
+     * @param delegate - The application's event handler.
+     * @return A journaling handler wrapping the delegate, or the delegate itself if journaling is disabled.
+     * @throws IOException - If the journal could not be created.
+     */
+    public static IEnvoyEventHandler wrapIfEnabled(IEnvoyEventHandler delegate) throws IOException {
+        String directory = System.getProperty("envoy.journal.dir");
+        if (directory == null) {
+            return delegate;
+        }
+        return new EventJournal(new File(directory), DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENTS_KEPT, delegate);
+    }
+
+    @Override
+    public void handleEnvoyEvent(Event event) {
+        if (event != null) {
+            try {
+                append(event, epochNanosAtStart + (System.nanoTime() - nanoTimeAtStart));
+            } catch (IOException e) {
+                // Journaling must never break event handling.
+                e.printStackTrace();
+            }
+        }
+
+        if (delegate != null) {
+            delegate.handleEnvoyEvent(event);
+        }
+    }
+
+    /**
+     * Writes any records still in memory to the segment file.
+     */
+    public synchronized void flush() {
+        segment.force();
+    }
+
+    private synchronized void append(Event event, long receivedAtNanos) throws IOException {
+        encoding.reset();
+        ObjectOutputStream out = new ObjectOutputStream(encoding);
+        out.writeObject(event);
+        out.close();
+
+        int length = HEADER_BYTES + encoding.size();
+        if (length + 4 > segmentBytes) {
+            System.out.println("Event too large to journal: " + event.getEventType());
+            return;
+        }
+
+        // Leave room for the zero terminator at the end of the segment.
+        if (segment.remaining() < length + 4) {
+            rotate();
+        }
+
+        segment.putInt(length);
+        segment.putLong(receivedAtNanos);
+        segment.put(encoding.toByteArray(), 0, encoding.size());
+    }
+
+    private void rotate() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+
+        segmentNumber++;
+        File file = new File(directory, String.format("%s%012d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // A new file reads as zeros, so an unwritten record length already marks the end.
+            raf.setLength(segmentBytes);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+
+        File[] all = segments(directory);
+        for (int i = 0; i < all.length - segmentsKept; i++) {
+            if (!all[i].delete()) {
+                System.out.println("Unable to delete old journal segment " + all[i]);
+            }
+        }
+    }
+
+    /**
+     * Replays a journal into a handler. Pauses longer than MAX_REPLAY_GAP_MS are shortened to it.
+     *
+     * @param directory - The journal directory.
+     * @param speed - The replay speed; 1 keeps the original spacing, 10 is ten times faster, 0 is as fast as possible.
+     * @param handler - The handler the events are pushed to.
+     * @return The number of events replayed.
+     * @throws IOException - If a segment could not be read.
+     * @throws InterruptedException - If interrupted while waiting between events.
+     */
+    public static long replay(File directory, double speed, IEnvoyEventHandler handler)
+            throws IOException, InterruptedException {
+        long replayed = 0;
+        long previousRecorded = -1;
+        long recordedElapsed = 0;
+        long maxGapNanos = TimeUnit.MILLISECONDS.toNanos(MAX_REPLAY_GAP_MS);
+        long replayStart = System.nanoTime();
+
+        for (File file : segments(directory)) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer records;
+            try {
+                records = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+
+            while (records.remaining() >= HEADER_BYTES) {
+                int length = records.getInt();
+                if (length == 0) {
+                    break;
+                }
+                if (length < HEADER_BYTES || length - 4 > records.remaining()) {
+                    System.out.println("Torn record in " + file.getName() + "; skipping the rest of the segment.");
+                    break;
+                }
+                long receivedAtNanos = records.getLong();
+                byte[] payload = new byte[length - HEADER_BYTES];
+                records.get(payload);
+
+                Event event;
+                try {
+                    event = decode(payload);
+                } catch (EOFException e) {
+                    System.out.println("Torn record in " + file.getName() + "; skipping the rest of the segment.");
+                    break;
+                } catch (StreamCorruptedException e) {
+                    System.out.println("Torn record in " + file.getName() + "; skipping the rest of the segment.");
+                    break;
+                }
+
+                if (previousRecorded >= 0) {
+                    recordedElapsed += Math.max(0, Math.min(receivedAtNanos - previousRecorded, maxGapNanos));
+                }
+                previousRecorded = receivedAtNanos;
+                if (speed > 0) {
+                    long due = replayStart + (long) (recordedElapsed / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+
+                handler.handleEnvoyEvent(event);
+                replayed++;
+            }
+        }
+
+        return replayed;
+    }
+
+    private static Event decode(byte[] payload) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+        try {
+            return (Event) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Journal was recorded with a different Envoy API version.", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File[] segments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+
+        // Zero-padded numbering makes name order the same as write order.
+        File[] result = Arrays.copyOf(files, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long numberOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void printEvent(Event event) {
+        if (event.getEventData() instanceof NoteEventData) {
+            NoteEventData data = (NoteEventData) event.getEventData();
+            System.out.println("Event: " + event.getEventType() + " " + data.getNote().getDenoms());
+        } else {
+            System.out.println("Event: " + event.getEventType());
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: EventJournal record <directory>");
+        System.out.println("       EventJournal replay <directory> [speed]");
+        System.exit(1);
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the mode, the journal directory and, for replay, the speed.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+        }
+
+        IEnvoyEventHandler printer = new IEnvoyEventHandler() {
+            @Override
+            public void handleEnvoyEvent(Event evt) {
+                if (evt != null) {
+                    printEvent(evt);
+                }
+            }
+        };
+
+        try {
+            if ("record".equals(args[0])) {
+                final EventJournal journal = new EventJournal(new File(args[1]),
+                        DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENTS_KEPT, printer);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        journal.flush();
+                    }
+                });
+
+                // Record everything the Envoy service reports until interrupted.
+                EnvoyEventListener eel = new EnvoyEventListener();
+                eel.registerHandler(journal);
+                System.out.println("Recording events; press Ctrl+C to stop.");
+                Thread.currentThread().join();
+
+            } else if ("replay".equals(args[0])) {
+                double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+                long replayed = replay(new File(args[1]), speed, printer);
+                System.out.println("Replayed " + replayed + " events.");
+
+            } else {
+                usage();
+            }
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
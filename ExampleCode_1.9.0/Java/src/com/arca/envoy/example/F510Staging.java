@@ -0,0 +1,428 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.iface.APICommandException;
+import com.arca.envoy.api.iface.FujitsuBillParams;
+import com.arca.envoy.api.iface.FujitsuDispByPosRsp;
+import com.arca.envoy.api.iface.FujitsuDispenseByPositionPrm;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.IF510Device;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * F510Staging.
+ *
+ * This example demonstrates preparing a Fujitsu F510 payout while the
+ * customer's transaction is still being authorized. An F510 payout is a
+ * dispense, a transport of the bundle to just behind the shutter (Ready to
+ * Deliver), and a Transport Deliver that presents it. Started only after
+ * authorization, the customer waits for all three.
+ *
+ * A staged payout runs the dispense and the Ready to Deliver transport as
+ * soon as the expected bundle is known:
+ *
+ *  - deliver() presents the bundle; if staging has finished, only the
+ *    Transport Deliver remains, so the customer waits for the shutter alone
+ *  - cancel() takes the bundle back with Retrieve; if Retrieve fails, a
+ *    mechanical reset rejects the bundle instead
+ *  - A payout neither delivered nor cancelled within its timeout is
+ *    cancelled automatically, and a payout whose staging fails is cancelled
+ *    at once, so a bundle is never left in the transport
+ *  - All device commands run on one thread per dispenser, in order, and
+ *    only one payout can be staged at a time
+ *
+ * The README describes Transport as one command with a Ready to Deliver and
+ * a Deliver option, and Retrieve as a separate command, but no SDK example
+ * shows their Java signatures. Every call to them therefore goes through
+ * the Transport adapter at the end of this class, which names assumed
+ * IF510Device methods; check it against the Envoy API version in use.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered F510 with notes in cassettes 1 and 2.
+ *
+ * See README for compilation and running instructions.
+ */
+public class F510Staging {
+
+    /**
+     * The state of a staged payout.
+     */
+    public enum State {
+        /** The dispense and transport are in progress. */
+        STAGING,
+        /** The bundle is waiting behind the shutter. */
+        STAGED,
+        /** The bundle was presented to the customer. */
+        DELIVERED,
+        /** The bundle was taken back with Retrieve. */
+        RETRIEVED,
+        /** The bundle was rejected with a mechanical reset. */
+        REJECTED,
+        /** The payout failed; the error says why. */
+        FAILED
+    }
+
+    /**
+     * A payout staged behind the shutter.
+     */
+    public final class StagedPayout {
+        private final Future<FujitsuDispByPosRsp> staging;
+        private ScheduledFuture<?> timeout;
+        private State state = State.STAGING;
+        private Exception error;
+
+        StagedPayout(final HashMap<Integer, Integer> posToCount) {
+            this.staging = device.submit(new Callable<FujitsuDispByPosRsp>() {
+                @Override
+                public FujitsuDispByPosRsp call() throws RemoteException {
+                    try {
+                        FujitsuDispByPosRsp rsp = f510.dispenseByPosition(new FujitsuDispenseByPositionPrm(posToCount));
+                        transport.readyToDeliver();
+                        setState(State.STAGING, State.STAGED);
+                        return rsp;
+                    } catch (RemoteException e) {
+                        failStaging(e);
+                        throw e;
+                    } catch (RuntimeException e) {
+                        failStaging(e);
+                        throw e;
+                    }
+                }
+            });
+        }
+
+        private void failStaging(Exception cause) {
+            fail(cause);
+            // Clear any partial bundle now, which also frees the stager for the next payout.
+            timer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    clearAbandoned();
+                }
+            });
+        }
+
+        private void clearAbandoned() {
+            try {
+                cancel();
+            } catch (RemoteException e) {
+                System.out.println("Unable to clear an abandoned bundle: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                // Delivered or cancelled in the meantime.
+            }
+        }
+
+        /**
+         * Presents the bundle, waiting for staging to finish if necessary.
+         *
+         * @return The notes dispensed from each position.
+         * @throws RemoteException - If staging or delivery failed. A bundle left after a failed
+         *                           staging is cleared at once, by cancel() or automatically.
+         */
+        public FujitsuDispByPosRsp deliver() throws RemoteException {
+            final FujitsuDispByPosRsp rsp = awaitStaging();
+            claim(State.DELIVERED);
+            run(new Callable<Void>() {
+                @Override
+                public Void call() throws RemoteException {
+                    transport.deliver();
+                    return null;
+                }
+            });
+            return rsp;
+        }
+
+        /**
+         * Takes the bundle back, rejecting it with a mechanical reset if Retrieve fails.
+         *
+         * @return RETRIEVED or REJECTED.
+         * @throws RemoteException - If the Envoy service could not be reached, or the mechanical reset failed.
+         */
+        public State cancel() throws RemoteException {
+            try {
+                awaitStaging();
+            } catch (RemoteException e) {
+                // A partial dispense may still be in the transport; clear it below.
+            }
+            claim(State.RETRIEVED);
+
+            return run(new Callable<State>() {
+                @Override
+                public State call() throws RemoteException {
+                    try {
+                        transport.retrieve();
+                        return State.RETRIEVED;
+                    } catch (APICommandException e) {
+                        return reject();
+                    } catch (RemoteException e) {
+                        return reject();
+                    }
+                }
+            });
+        }
+
+        private State reject() throws RemoteException {
+            // The bundle could not be taken back; the reset moves it to the reject box.
+            f510.mechanicalReset(billParams);
+            setState(State.RETRIEVED, State.REJECTED);
+            return State.REJECTED;
+        }
+
+        /**
+         * Gets the payout's state.
+         *
+         * @return The state.
+         */
+        public synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * Gets the error that failed the payout.
+         *
+         * @return The error, or null.
+         */
+        public synchronized Exception getError() {
+            return error;
+        }
+
+        private FujitsuDispByPosRsp awaitStaging() throws RemoteException {
+            try {
+                return staging.get();
+            } catch (ExecutionException e) {
+                fail((Exception) e.getCause());
+                throw e.getCause() instanceof RemoteException
+                        ? (RemoteException) e.getCause()
+                        : new RemoteException("Staging failed.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted waiting for staging.", e);
+            }
+        }
+
+        private synchronized void claim(State next) {
+            if (state != State.STAGED && state != State.FAILED) {
+                throw new IllegalStateException("Payout is already " + state + ".");
+            }
+            state = next;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        private synchronized void setState(State expected, State next) {
+            if (state == expected) {
+                state = next;
+            }
+        }
+
+        private synchronized void fail(Exception cause) {
+            if (state == State.STAGING) {
+                state = State.FAILED;
+                error = cause;
+            }
+        }
+
+        private <T> T run(Callable<T> command) throws RemoteException {
+            try {
+                return device.submit(command).get();
+            } catch (ExecutionException e) {
+                synchronized (this) {
+                    state = State.FAILED;
+                    error = (Exception) e.getCause();
+                }
+                throw e.getCause() instanceof RemoteException
+                        ? (RemoteException) e.getCause()
+                        : new RemoteException("Command failed.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted waiting for the dispenser.", e);
+            } finally {
+                release(this);
+            }
+        }
+    }
+
+    private final IF510Device f510;
+    private final Transport transport;
+    private final FujitsuBillParams billParams;
+    private final ExecutorService device = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private StagedPayout current;
+
+    /**
+     * Creates a stager for one dispenser.
+     *
+     * @param f510 - The dispenser.
+     * @param billParams - The bill parameters used if a bundle must be rejected with a mechanical reset.
+     */
+    public F510Staging(IF510Device f510, FujitsuBillParams billParams) {
+        this.f510 = f510;
+        this.transport = new Transport(f510);
+        this.billParams = billParams;
+    }
+
+    /**
+     * Starts dispensing a bundle and moving it behind the shutter.
+     *
+     * @param posToCount - The number of notes to dispense from each cassette position.
+     * @param timeoutMs - How long the bundle may wait for deliver() or cancel() before it is retrieved, in milliseconds.
+     * @return The staged payout.
+     */
+    public synchronized StagedPayout stage(HashMap<Integer, Integer> posToCount, long timeoutMs) {
+        if (current != null) {
+            throw new IllegalStateException("A payout is already staged.");
+        }
+
+        final StagedPayout payout = new StagedPayout(posToCount);
+        current = payout;
+        payout.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                payout.clearAbandoned();
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        return payout;
+    }
+
+    private synchronized void release(StagedPayout payout) {
+        if (current == payout) {
+            current = null;
+        }
+    }
+
+    /**
+     * Stops the stager's threads. A staged payout should be delivered or cancelled first.
+     */
+    public void close() {
+        timer.shutdownNow();
+        device.shutdown();
+    }
+
+    /**
+     * ASSUMED API. The F510 Transport and Retrieve commands.
+     * <p>
+     * The README documents one Transport command with a Ready to Deliver and a
+     * Deliver option, and a Retrieve command that pulls a transported bundle
+     * back and rejects it. The IF510Device method names used here are assumed,
+     * not taken from an SDK example; this is the only place they appear, so
+     * it is the only code to change if the Envoy API names them differently.
+     */
+    private static final class Transport {
+        private final IF510Device f510;
+
+        Transport(IF510Device f510) {
+            this.f510 = f510;
+        }
+
+        /**
+         * Transport with the Ready to Deliver option: moves the bundle to just behind the shutter.
+         *
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        void readyToDeliver() throws RemoteException {
+            f510.transportReadyToDeliver();
+        }
+
+        /**
+         * Transport with the Deliver option: presents the bundle in the customer area.
+         *
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        void deliver() throws RemoteException {
+            f510.transportDeliver();
+        }
+
+        /**
+         * Retrieve: pulls a transported bundle back and rejects it.
+         *
+         * @throws RemoteException - If the Envoy service could not be reached.
+         */
+        void retrieve() throws RemoteException {
+            f510.retrieve();
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String devicePath = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.FUJITSU_F510) {
+                    devicePath = envoySystem.getDevicePath(deviceName);
+                    break;
+                }
+            }
+
+            if (devicePath == null) {
+                System.out.println("No registered F510 found.");
+                System.exit(1);
+            }
+
+            IF510Device f510 = (IF510Device) Naming.lookup(devicePath);
+            byte[] bBillLengths = {(byte) 0x9A, (byte) 0x9A};
+            byte[] bBillThicks = {(byte) 0x0D, (byte) 0x0D};
+            F510Staging stager = new F510Staging(f510, new FujitsuBillParams(bBillLengths, bBillThicks, false));
+
+            HashMap<Integer, Integer> posToCount = new HashMap<Integer, Integer>();
+            posToCount.put(1, 1); // Dispense 1 Note(s) from Position #1.
+            posToCount.put(2, 1); // Dispense 1 Note(s) from Position #2.
+
+            // First transaction: authorized, so the bundle is delivered.
+            StagedPayout payout = stager.stage(posToCount, TimeUnit.SECONDS.toMillis(60));
+            System.out.println("Staging while the transaction is authorized...");
+            Thread.sleep(3000);
+
+            long start = System.nanoTime();
+            FujitsuDispByPosRsp rsp = payout.deliver();
+            System.out.println("Delivered " + (rsp.getDispensedByPosition(1) + rsp.getDispensedByPosition(2))
+                    + " notes " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms after authorization.");
+
+            // Second transaction: declined, so the bundle is taken back.
+            payout = stager.stage(posToCount, TimeUnit.SECONDS.toMillis(60));
+            Thread.sleep(3000);
+            System.out.println("Transaction declined; bundle " + payout.cancel() + ".");
+
+            stager.close();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,558 @@
+package com.arca.envoy.example;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * FederationClient.
+ *
+ * This example demonstrates querying many Envoy services at once. The other
+ * examples connect to the Envoy service on the local host; head-office tools
+ * that need the device status or cash position of every store otherwise
+ * visit the stores one at a time, and a single unreachable store stalls the
+ * whole run.
+ *
+ * The federation client:
+ *
+ *  - Connects to every host concurrently and builds one directory of
+ *    registered devices, keyed by host and logical device name
+ *  - Scatters a query to every host and gathers the results, running at
+ *    most a fixed number of hosts at a time
+ *  - Gives each host its own timeout; a slow or unreachable host is
+ *    reported as such and never delays the results of the others
+ *  - Looks up device objects by directory key, fixing device paths that
+ *    name "localhost" so they point at the store host
+ *
+ * Running the example with the argument "standins" starts a number of local
+ * stand-in Envoy services on consecutive ports, one of them too slow to
+ * answer in time, and runs the client against them.
+ *
+ * Usage:
+ *
+ *   FederationClient host[:port] ...
+ *   FederationClient standins [count] [first-port]
+ *
+ * Before running this example, you will need:
+ *  - Envoy services running on the listed hosts, unless running with "standins".
+ *
+ * See README for compilation and running instructions.
+ */
+public class FederationClient {
+
+    private static final int DEFAULT_CONCURRENCY = 32;
+    private static final long DEFAULT_TIMEOUT_MS = 3000;
+    private static final int DEFAULT_STANDINS = 20;
+    private static final int DEFAULT_STANDIN_PORT = 1300;
+
+    /** Keeps the stand-in registries and objects reachable while they are exported. */
+    private static final List<Object> STAND_INS = new ArrayList<Object>();
+
+    /**
+     * A query against one Envoy service.
+     *
+     * @param <T> - The result type.
+     */
+    public interface HostQuery<T> {
+        /**
+         * Performs the query.
+         *
+         * @param host - The host, as given to the client.
+         * @param envoySystem - The Envoy system object of the host.
+         * @return The query result.
+         * @throws Exception - If the query failed.
+         */
+        T call(String host, IEnvoySystem envoySystem) throws Exception;
+    }
+
+    /**
+     * Identifies a device across the federation.
+     */
+    public static final class DeviceKey {
+        private final String host;
+        private final String deviceName;
+
+        /**
+         * Creates a key.
+         *
+         * @param host - The host, as given to the client.
+         * @param deviceName - The logical device name on that host.
+         */
+        public DeviceKey(String host, String deviceName) {
+            this.host = host;
+            this.deviceName = deviceName;
+        }
+
+        /**
+         * Gets the host.
+         *
+         * @return The host.
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Gets the logical device name.
+         *
+         * @return The logical device name.
+         */
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DeviceKey)) {
+                return false;
+            }
+            DeviceKey key = (DeviceKey) other;
+            return host.equals(key.host) && deviceName.equals(key.deviceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * host.hashCode() + deviceName.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return host + "/" + deviceName;
+        }
+    }
+
+    /**
+     * The outcome of a query on one host.
+     *
+     * @param <T> - The result type.
+     */
+    public static final class HostResult<T> {
+        private final String host;
+        private final T value;
+        private final Throwable error;
+        private final boolean timedOut;
+        private final long elapsedMs;
+
+        HostResult(String host, T value, Throwable error, boolean timedOut, long elapsedMs) {
+            this.host = host;
+            this.value = value;
+            this.error = error;
+            this.timedOut = timedOut;
+            this.elapsedMs = elapsedMs;
+        }
+
+        /**
+         * Gets the host.
+         *
+         * @return The host.
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Gets the query result.
+         *
+         * @return The result, or null if the query failed or timed out.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * Gets the failure.
+         *
+         * @return The error, or null if the query succeeded or timed out.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Determines whether the host answered in time.
+         *
+         * @return True if the host's timeout expired.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Determines whether the query succeeded.
+         *
+         * @return True if a result is available.
+         */
+        public boolean isSuccess() {
+            return error == null && !timedOut;
+        }
+
+        /**
+         * Gets how long the host took.
+         *
+         * @return The elapsed time, in milliseconds.
+         */
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            if (timedOut) {
+                return host + ": timed out after " + elapsedMs + " ms";
+            }
+            return host + ": " + (error == null ? String.valueOf(value) : "failed: " + error) + " (" + elapsedMs + " ms)";
+        }
+    }
+
+    /**
+     * What connect() found on one host, before it is added to the directory.
+     */
+    private static final class HostEntries {
+        private final IEnvoySystem envoySystem;
+        private final Set<DeviceKey> directory = new HashSet<DeviceKey>();
+        private final Map<DeviceKey, DeviceInformation> information = new HashMap<DeviceKey, DeviceInformation>();
+
+        HostEntries(IEnvoySystem envoySystem) {
+            this.envoySystem = envoySystem;
+        }
+    }
+
+    private final List<String> hosts;
+    private final long timeoutMs;
+    private final ExecutorService workers;
+    private final ExecutorService calls;
+    private final Map<String, IEnvoySystem> systems = new ConcurrentHashMap<String, IEnvoySystem>();
+    private final Set<DeviceKey> directory = Collections.newSetFromMap(new ConcurrentHashMap<DeviceKey, Boolean>());
+    private final Map<DeviceKey, DeviceInformation> information = new ConcurrentHashMap<DeviceKey, DeviceInformation>();
+
+    /**
+     * Creates a federation client.
+     *
+     * @param hosts - The hosts, each "host" or "host:port".
+     * @param maxConcurrency - The most hosts queried at the same time.
+     * @param timeoutMs - The time each host has to answer, in milliseconds.
+     */
+    public FederationClient(List<String> hosts, int maxConcurrency, long timeoutMs) {
+        this.hosts = Collections.unmodifiableList(new ArrayList<String>(hosts));
+        this.timeoutMs = timeoutMs;
+
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "federation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.workers = Executors.newFixedThreadPool(maxConcurrency, daemons);
+        // A call abandoned after its timeout keeps its thread until RMI gives up, so the callers are not bounded.
+        this.calls = Executors.newCachedThreadPool(daemons);
+    }
+
+    /**
+     * Connects to every host and builds the device directory.
+     *
+     * @return The connection result of every host: the number of devices registered there.
+     */
+    public List<HostResult<Integer>> connect() {
+        // Each host's entries are built apart and published only from its reported result, so a host that
+        // answers after being reported as timed out never changes the directory.
+        List<HostResult<HostEntries>> found = scatter(new HostQuery<HostEntries>() {
+            @Override
+            public HostEntries call(String host, IEnvoySystem ignored) throws Exception {
+                HostEntries entries = new HostEntries((IEnvoySystem) Naming.lookup("//" + host + "/envoy/system"));
+                for (String deviceName : entries.envoySystem.getRegisteredDeviceNames()) {
+                    DeviceKey key = new DeviceKey(host, deviceName);
+                    DeviceInformation deviceInformation = entries.envoySystem.getRegisteredDeviceInformation(deviceName);
+                    if (deviceInformation != null) {
+                        entries.information.put(key, deviceInformation);
+                    }
+                    entries.directory.add(key);
+                }
+                return entries;
+            }
+        }, true);
+
+        List<HostResult<Integer>> results = new ArrayList<HostResult<Integer>>();
+        for (HostResult<HostEntries> result : found) {
+            HostEntries entries = result.getValue();
+            if (!result.isSuccess()) {
+                results.add(new HostResult<Integer>(result.getHost(), null, result.getError(), result.isTimedOut(),
+                        result.getElapsedMs()));
+                continue;
+            }
+            information.putAll(entries.information);
+            directory.addAll(entries.directory);
+            systems.put(result.getHost(), entries.envoySystem);
+            results.add(new HostResult<Integer>(result.getHost(), entries.directory.size(), null, false,
+                    result.getElapsedMs()));
+        }
+        return results;
+    }
+
+    /**
+     * Gets the device directory built by connect().
+     *
+     * @return The registered devices of every connected host.
+     */
+    public Set<DeviceKey> getDirectory() {
+        return Collections.unmodifiableSet(directory);
+    }
+
+    /**
+     * Gets the registration information of a device, as read by connect().
+     *
+     * @param key - The directory key.
+     * @return The device information, or null if the host did not provide it.
+     */
+    public DeviceInformation getInformation(DeviceKey key) {
+        return information.get(key);
+    }
+
+    /**
+     * Runs a query on every connected host.
+     *
+     * @param query - The query.
+     * @param <T> - The result type.
+     * @return The result of every host, in the order the hosts were given.
+     */
+    public <T> List<HostResult<T>> scatter(HostQuery<T> query) {
+        return scatter(query, false);
+    }
+
+    private <T> List<HostResult<T>> scatter(final HostQuery<T> query, boolean connecting) {
+        Map<String, Future<HostResult<T>>> pending = new LinkedHashMap<String, Future<HostResult<T>>>();
+        for (final String host : hosts) {
+            final IEnvoySystem envoySystem = systems.get(host);
+            if (!connecting && envoySystem == null) {
+                pending.put(host, null);
+                continue;
+            }
+            pending.put(host, workers.submit(new Callable<HostResult<T>>() {
+                @Override
+                public HostResult<T> call() {
+                    return callHost(host, envoySystem, query);
+                }
+            }));
+        }
+
+        List<HostResult<T>> results = new ArrayList<HostResult<T>>();
+        for (Map.Entry<String, Future<HostResult<T>>> entry : pending.entrySet()) {
+            if (entry.getValue() == null) {
+                results.add(new HostResult<T>(entry.getKey(), null, new NotBoundException("Not connected."), false, 0));
+                continue;
+            }
+            try {
+                results.add(entry.getValue().get());
+            } catch (ExecutionException e) {
+                results.add(new HostResult<T>(entry.getKey(), null, e.getCause(), false, 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(new HostResult<T>(entry.getKey(), null, e, false, 0));
+            }
+        }
+        return results;
+    }
+
+    private <T> HostResult<T> callHost(final String host, final IEnvoySystem envoySystem, final HostQuery<T> query) {
+        long start = System.nanoTime();
+        Future<T> call = calls.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return query.call(host, envoySystem);
+            }
+        });
+
+        try {
+            T value = call.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return new HostResult<T>(host, value, null, false, elapsedMs(start));
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            return new HostResult<T>(host, null, null, true, elapsedMs(start));
+        } catch (ExecutionException e) {
+            return new HostResult<T>(host, null, e.getCause(), false, elapsedMs(start));
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+            return new HostResult<T>(host, null, e, false, elapsedMs(start));
+        }
+    }
+
+    private static long elapsedMs(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Looks up a device object on its host.
+     *
+     * @param key - The directory key.
+     * @return The device object.
+     * @throws RemoteException - If the host could not be reached.
+     * @throws NotBoundException - If the device is not registered there.
+     * @throws MalformedURLException - If the host returned an invalid path.
+     */
+    public Remote lookup(DeviceKey key) throws RemoteException, NotBoundException, MalformedURLException {
+        IEnvoySystem envoySystem = systems.get(key.getHost());
+        if (envoySystem == null) {
+            throw new NotBoundException(key.getHost() + " is not connected.");
+        }
+        String devicePath = envoySystem.getDevicePath(key.getDeviceName());
+        if (devicePath == null) {
+            throw new NotBoundException(key + " is not registered.");
+        }
+        if (devicePath.startsWith("//localhost")) {
+            // The service names itself; point at the host the client used instead.
+            String bindName = devicePath.substring(devicePath.indexOf('/', 2));
+            devicePath = "//" + key.getHost() + bindName;
+        }
+        return Naming.lookup(devicePath);
+    }
+
+    /**
+     * Stops the client's threads. Calls still waiting on a host are abandoned.
+     */
+    public void close() {
+        workers.shutdownNow();
+        calls.shutdownNow();
+    }
+
+    /**
+     * Starts local stand-in Envoy services on consecutive ports. Each answers after a
+     * short random delay and registers two devices; the last one answers too slowly.
+     *
+     * @param count - The number of stand-ins.
+     * @param firstPort - The port of the first stand-in.
+     * @param slowMs - The delay of the slow stand-in, in milliseconds.
+     * @return The stand-in hosts, as "localhost:port".
+     * @throws RemoteException - If a stand-in could not be exported.
+     */
+    static List<String> startStandIns(int count, int firstPort, final long slowMs) throws RemoteException {
+        List<String> hosts = new ArrayList<String>();
+        final Random random = new Random();
+        for (int i = 0; i < count; i++) {
+            final int port = firstPort + i;
+            final boolean slow = i == count - 1;
+            final HashSet<String> names = new HashSet<String>(Arrays.asList("SCR_" + port, "FUJITSU_F53_" + port));
+
+            IEnvoySystem system = (IEnvoySystem) Proxy.newProxyInstance(IEnvoySystem.class.getClassLoader(),
+                    new Class<?>[] {IEnvoySystem.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            Thread.sleep(slow ? slowMs : 5 + random.nextInt(20));
+                            if ("getRegisteredDeviceNames".equals(method.getName())) {
+                                return new HashSet<String>(names);
+                            } else if ("isRegisteredDeviceName".equals(method.getName())) {
+                                return names.contains(args[0]);
+                            } else if ("getDevicePath".equals(method.getName())) {
+                                return names.contains(args[0]) ? "//localhost/envoy/device/" + args[0] : null;
+                            }
+                            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                        }
+                    });
+
+            Registry registry = LocateRegistry.createRegistry(port);
+            registry.rebind("envoy/system", UnicastRemoteObject.exportObject(system, 0));
+            STAND_INS.add(registry);
+            STAND_INS.add(system);
+            hosts.add("localhost:" + port);
+        }
+        return hosts;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the hosts, or "standins" with a count and first port.
+     */
+    public static void main(String[] args) {
+        try {
+            List<String> hosts;
+            if (args.length > 0 && "standins".equals(args[0])) {
+                int count = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STANDINS;
+                int firstPort = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_STANDIN_PORT;
+                hosts = startStandIns(count, firstPort, DEFAULT_TIMEOUT_MS * 2);
+            } else if (args.length > 0) {
+                hosts = Arrays.asList(args);
+            } else {
+                hosts = Collections.singletonList("localhost");
+            }
+
+            FederationClient federation = new FederationClient(hosts, DEFAULT_CONCURRENCY, DEFAULT_TIMEOUT_MS);
+
+            long start = System.nanoTime();
+            int connected = 0;
+            for (HostResult<Integer> result : federation.connect()) {
+                if (result.isSuccess()) {
+                    connected++;
+                } else {
+                    System.out.println(result);
+                }
+            }
+            System.out.println("Connected to " + connected + " of " + hosts.size() + " hosts in " + elapsedMs(start)
+                    + " ms; " + federation.getDirectory().size() + " devices, for example:");
+            int shown = 0;
+            for (DeviceKey device : federation.getDirectory()) {
+                if (shown++ == 5) {
+                    break;
+                }
+                DeviceInformation deviceInformation = federation.getInformation(device);
+                System.out.println("\t" + device + (deviceInformation == null ? "" : ": " + deviceInformation.getDeviceType()));
+            }
+
+            // A store-wide question, asked of every host at once.
+            start = System.nanoTime();
+            List<HostResult<Integer>> counts = federation.scatter(new HostQuery<Integer>() {
+                @Override
+                public Integer call(String host, IEnvoySystem envoySystem) throws RemoteException {
+                    return envoySystem.getRegisteredDeviceNames().size();
+                }
+            });
+            int devices = 0;
+            for (HostResult<Integer> result : counts) {
+                if (result.isSuccess()) {
+                    devices += result.getValue();
+                }
+            }
+            System.out.println("Counted " + devices + " registered devices across the federation in "
+                    + elapsedMs(start) + " ms.");
+
+            federation.close();
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
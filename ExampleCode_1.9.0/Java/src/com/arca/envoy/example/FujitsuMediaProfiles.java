@@ -0,0 +1,438 @@
+package com.arca.envoy.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.iface.FujitsuBillParams;
+import com.arca.envoy.api.iface.FujitsuDefaultMediaMappings;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.IFujitsuDevice;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * FujitsuMediaProfiles.
+ *
+ * This example demonstrates switching a Fujitsu dispenser between currency
+ * loadouts. The F53 and F400 examples rebuild the media mappings with
+ * FujitsuDefaultMediaMappings and perform a mechanical reset every time they
+ * start. Media mappings set on the Envoy service do not survive a service
+ * restart, so a store that changes its loadout pays for the reconfiguration
+ * and the reset on every switch and every restart.
+ *
+ * This example keeps named media-mapping profiles for each device:
+ *
+ *  - A profile is built once into an immutable magnet-to-denomination table,
+ *    together with the cassette geometry (bill lengths, thicknesses and
+ *    polymer support) it needs
+ *  - Profiles and the active profile of each device are saved to a file, so
+ *    they are restored after an application or Envoy service restart
+ *  - switchTo() pushes the new mappings in a single setMediaMappings() call,
+ *    and only performs a mechanical reset when the cassette geometry differs
+ *    from the geometry last written to the dispenser
+ *
+ * Usage:
+ *
+ *   FujitsuMediaProfiles [profile-name]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered F53.
+ *
+ * See README for compilation and running instructions.
+ */
+public class FujitsuMediaProfiles {
+
+    private static final String ACTIVE_KEY = "active";
+
+    /**
+     * A named, immutable media-mapping profile.
+     */
+    public static final class MediaProfile {
+        private final String name;
+        private final DeviceType deviceType;
+        private final Denomination[] byMagnet;
+        private final HashMap<Integer, Denomination> mediaMappings;
+        private final byte[] billLengths;
+        private final byte[] billThicknesses;
+        private final boolean polymer;
+
+        /**
+         * Creates a profile.
+         *
+         * @param name - The profile name.
+         * @param deviceType - The dispenser type the profile is for.
+         * @param mappings - The magnet setting to denomination mappings.
+         * @param billLengths - The bill length of each cassette.
+         * @param billThicknesses - The bill thickness of each cassette.
+         * @param polymer - Whether polymer notes are supported.
+         */
+        public MediaProfile(String name, DeviceType deviceType, Map<Integer, Denomination> mappings,
+                byte[] billLengths, byte[] billThicknesses, boolean polymer) {
+            int size = 0;
+            for (int magnet : mappings.keySet()) {
+                size = Math.max(size, magnet + 1);
+            }
+            Denomination[] table = new Denomination[size];
+            for (Map.Entry<Integer, Denomination> mapping : mappings.entrySet()) {
+                table[mapping.getKey()] = mapping.getValue();
+            }
+
+            this.name = name;
+            this.deviceType = deviceType;
+            this.byMagnet = table;
+            this.mediaMappings = new HashMap<Integer, Denomination>(mappings);
+            this.billLengths = billLengths.clone();
+            this.billThicknesses = billThicknesses.clone();
+            this.polymer = polymer;
+        }
+
+        /**
+         * Creates a profile from the Envoy default mappings for a currency.
+         *
+         * @param name - The profile name.
+         * @param deviceType - The dispenser type.
+         * @param currency - The currency.
+         * @param billLengths - The bill length of each cassette.
+         * @param billThicknesses - The bill thickness of each cassette.
+         * @param polymer - Whether polymer notes are supported.
+         * @return The profile.
+         */
+        public static MediaProfile fromDefaults(String name, DeviceType deviceType, CurCodeEnum currency,
+                byte[] billLengths, byte[] billThicknesses, boolean polymer) {
+            return new MediaProfile(name, deviceType, FujitsuDefaultMediaMappings.getMapping(deviceType, currency),
+                    billLengths, billThicknesses, polymer);
+        }
+
+        /**
+         * Gets the profile name.
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the dispenser type the profile is for.
+         *
+         * @return The device type.
+         */
+        public DeviceType getDeviceType() {
+            return deviceType;
+        }
+
+        /**
+         * Gets the denomination mapped to a magnet setting.
+         *
+         * @param magnet - The magnet setting.
+         * @return The denomination, or null if the setting is not mapped.
+         */
+        public Denomination getDenomination(int magnet) {
+            return magnet >= 0 && magnet < byMagnet.length ? byMagnet[magnet] : null;
+        }
+
+        /**
+         * Gets the argument for setMediaMappings(), built once with the profile.
+         *
+         * @return The map of magnet settings to denominations; the same map every time, not to be modified.
+         */
+        public HashMap<Integer, Denomination> toMediaMappings() {
+            return mediaMappings;
+        }
+
+        /**
+         * Builds the argument for mechanicalReset().
+         *
+         * @return The bill parameters.
+         */
+        public FujitsuBillParams toBillParams() {
+            return new FujitsuBillParams(billLengths.clone(), billThicknesses.clone(), polymer);
+        }
+
+        /**
+         * Determines whether another profile uses the same cassette geometry, in which case
+         * switching from it needs no mechanical reset.
+         *
+         * @param other - The profile currently applied, or null if unknown.
+         * @return True if both profiles use the same cassette geometry.
+         */
+        public boolean hasSameGeometry(MediaProfile other) {
+            return other != null
+                    && polymer == other.polymer
+                    && Arrays.equals(billLengths, other.billLengths)
+                    && Arrays.equals(billThicknesses, other.billThicknesses);
+        }
+    }
+
+    private final File file;
+    private final Map<String, MediaProfile> profiles = new HashMap<String, MediaProfile>();
+    private MediaProfile active;
+
+    /**
+     * Creates the profiles of one device, loading any saved profiles.
+     *
+     * @param file - The file the device's profiles are kept in.
+     * @throws IOException - If an existing file could not be read.
+     */
+    public FujitsuMediaProfiles(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Adds or replaces a profile and saves the profiles.
+     *
+     * @param profile - The profile.
+     * @throws IOException - If the profiles could not be saved.
+     */
+    public synchronized void put(MediaProfile profile) throws IOException {
+        profiles.put(profile.getName(), profile);
+        if (active != null && active.getName().equals(profile.getName())) {
+            // The dispenser still holds the old geometry; force a reset on the next switch.
+            active = null;
+        }
+        save();
+    }
+
+    /**
+     * Gets the profile names.
+     *
+     * @return The names, sorted.
+     */
+    public synchronized Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeSet<String>(profiles.keySet()));
+    }
+
+    /**
+     * Gets the profile last applied to the device.
+     *
+     * @return The active profile, or null if none has been applied.
+     */
+    public synchronized MediaProfile getActive() {
+        return active;
+    }
+
+    /**
+     * Switches the device to a profile.
+     *
+     * @param device - The dispenser.
+     * @param name - The profile name.
+     * @return True if a mechanical reset was needed.
+     * @throws IOException - If the device could not be configured or the active profile could not be saved.
+     */
+    public synchronized boolean switchTo(IFujitsuDevice device, String name) throws IOException {
+        MediaProfile profile = profiles.get(name);
+        if (profile == null) {
+            throw new IllegalArgumentException("Unknown media profile: " + name);
+        }
+
+        device.setMediaMappings(profile.toMediaMappings());
+        boolean reset = !profile.hasSameGeometry(active);
+        if (reset) {
+            device.mechanicalReset(profile.toBillParams());
+        }
+
+        active = profile;
+        save();
+        return reset;
+    }
+
+    /**
+     * Re-applies the active profile, for example after the Envoy service restarts.
+     * The geometry is already in the dispenser's memory, so no reset is performed.
+     *
+     * @param device - The dispenser.
+     * @return True if there was an active profile to apply.
+     * @throws RemoteException - If the device could not be configured.
+     */
+    public synchronized boolean restore(IFujitsuDevice device) throws RemoteException {
+        if (active == null) {
+            return false;
+        }
+        device.setMediaMappings(active.toMediaMappings());
+        return true;
+    }
+
+    private void load() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            if (key.endsWith(".device")) {
+                String name = key.substring(0, key.length() - ".device".length());
+                profiles.put(name, read(properties, name));
+            }
+        }
+        active = profiles.get(properties.getProperty(ACTIVE_KEY));
+    }
+
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        for (MediaProfile profile : profiles.values()) {
+            write(properties, profile);
+        }
+        if (active != null) {
+            properties.setProperty(ACTIVE_KEY, active.getName());
+        }
+
+        // Write the new file beside the old one, so a crash never leaves a partial file.
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, "Fujitsu media mapping profiles");
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static MediaProfile read(Properties properties, String name) {
+        String prefix = name + ".";
+        Map<Integer, Denomination> mappings = new HashMap<Integer, Denomination>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix + "magnet.")) {
+                // Each mapping is stored as CURRENCY:MONEYTYPE:VALUE, for example USD:BILL:20.
+                String[] denom = properties.getProperty(key).split(":");
+                mappings.put(Integer.parseInt(key.substring((prefix + "magnet.").length())),
+                        CurCodeEnum.valueOf(denom[0]).denom(MoneyTypeEnum.valueOf(denom[1]), Integer.parseInt(denom[2])));
+            }
+        }
+
+        return new MediaProfile(name,
+                DeviceType.valueOf(properties.getProperty(prefix + "device")),
+                mappings,
+                parseBytes(properties.getProperty(prefix + "lengths")),
+                parseBytes(properties.getProperty(prefix + "thicknesses")),
+                Boolean.parseBoolean(properties.getProperty(prefix + "polymer")));
+    }
+
+    private static void write(Properties properties, MediaProfile profile) {
+        String prefix = profile.name + ".";
+        properties.setProperty(prefix + "device", profile.deviceType.name());
+        for (int magnet = 0; magnet < profile.byMagnet.length; magnet++) {
+            Denomination denom = profile.byMagnet[magnet];
+            if (denom != null) {
+                properties.setProperty(prefix + "magnet." + magnet,
+                        denom.getCurrencyCode() + ":" + denom.getMoneyType() + ":" + denom.getValue());
+            }
+        }
+        properties.setProperty(prefix + "lengths", formatBytes(profile.billLengths));
+        properties.setProperty(prefix + "thicknesses", formatBytes(profile.billThicknesses));
+        properties.setProperty(prefix + "polymer", Boolean.toString(profile.polymer));
+    }
+
+    private static byte[] parseBytes(String text) {
+        String[] hex = text.split(",");
+        byte[] bytes = new byte[hex.length];
+        for (int i = 0; i < hex.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex[i].trim(), 16);
+        }
+        return bytes;
+    }
+
+    private static String formatBytes(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(String.format("%02X", b & 0xFF));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the profile to switch to.
+     */
+    public static void main(String[] args) {
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String deviceName = null;
+            for (String name : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(name);
+
+                if (deviceInformation.getDeviceType() == DeviceType.FUJITSU_F53) {
+                    deviceName = name;
+                    break;
+                }
+            }
+
+            if (deviceName == null) {
+                System.out.println("No registered F53 found.");
+                System.exit(1);
+            }
+
+            IFujitsuDevice device = (IFujitsuDevice) Naming.lookup(envoySystem.getDevicePath(deviceName));
+            FujitsuMediaProfiles profiles = new FujitsuMediaProfiles(
+                    new File(System.getProperty("user.home"), deviceName + ".profiles"));
+
+            // Both loadouts use the same cassettes, with polymer support enabled for the Canadian notes.
+            if (profiles.getNames().isEmpty()) {
+                byte[] lengths = {(byte) 0x9A, (byte) 0x9A};
+                byte[] thicknesses = {(byte) 0x0D, (byte) 0x0D};
+                profiles.put(MediaProfile.fromDefaults("USD", DeviceType.FUJITSU_F53, CurCodeEnum.USD, lengths, thicknesses, true));
+                profiles.put(MediaProfile.fromDefaults("CAD", DeviceType.FUJITSU_F53, CurCodeEnum.CAD, lengths, thicknesses, true));
+            }
+
+            String target = args.length > 0 ? args[0] : "USD";
+            if (profiles.restore(device)) {
+                System.out.println("Restored profile " + profiles.getActive().getName() + " without a reset.");
+                if (profiles.getActive().getName().equals(target)) {
+                    System.exit(0);
+                }
+            }
+
+            long start = System.nanoTime();
+            boolean reset = profiles.switchTo(device, target);
+            System.out.println("Switched " + deviceName + " to " + target + (reset ? " with" : " without")
+                    + " a mechanical reset in " + (System.nanoTime() - start) / 1000000 + " ms.");
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,326 @@
+package com.arca.envoy.example;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jpos.BillDispenser;
+import jpos.JposConst;
+import jpos.JposException;
+
+import com.arca.envoy.example.JavaPOSSessionPool.Lease;
+import com.arca.envoy.example.JavaPOSSessionPool.PooledDevice;
+
+/**
+ * HealthScheduler.
+ *
+ * This example demonstrates running JavaPOS bill dispenser health checks in
+ * the background. checkHealth(JPOS_CH_INTERNAL) blocks its caller, and
+ * checkHealth(JPOS_CH_EXTERNAL) dispenses a note from every cassette into
+ * the reject tray, so it cannot run during trading hours.
+ *
+ * The scheduler checks each dispenser for the caller and caches the results:
+ *
+ *  - Internal checks run periodically, staggered across the dispensers so
+ *    they do not all reach their devices at the same moment
+ *  - External checks run once a day inside a maintenance window. Each host
+ *    in a fleet is given a slot, and every dispenser in the fleet gets its
+ *    own offset into the window, so no two external checks overlap. The
+ *    window may cross midnight, and an external check is never started
+ *    outside it
+ *  - getHealth() returns the latest getCheckHealthText() result and its
+ *    timestamp immediately, without touching the device
+ *  - Checks lease dispensers from a JavaPOSSessionPool with a short
+ *    timeout; a dispenser busy with a transaction is skipped and checked
+ *    again later, so background checks never delay a customer
+ *
+ * Usage:
+ *
+ *   HealthScheduler [fleet-slot] [fleet-slots]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered F53 with the default logical name of 'FUJITSU_F53'.
+ *
+ * See README for compilation and running instructions.
+ */
+public class HealthScheduler {
+
+    private static final long LEASE_TIMEOUT_MS = 100;
+    private static final long EXTERNAL_RETRY_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * The result of the latest health check of one level.
+     */
+    public static final class HealthSnapshot {
+        private final int level;
+        private final String text;
+        private final long checkedAt;
+        private final String error;
+
+        HealthSnapshot(int level, String text, long checkedAt, String error) {
+            this.level = level;
+            this.text = text;
+            this.checkedAt = checkedAt;
+            this.error = error;
+        }
+
+        /**
+         * Gets the check level, such as JPOS_CH_INTERNAL.
+         *
+         * @return The check level.
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * Gets the getCheckHealthText() result.
+         *
+         * @return The health text, or null if the check failed.
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Gets when the check completed.
+         *
+         * @return The completion time, in milliseconds since the epoch.
+         */
+        public long getCheckedAt() {
+            return checkedAt;
+        }
+
+        /**
+         * Gets the error that prevented the check.
+         *
+         * @return The error message, or null if the check succeeded.
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("level %d at %tT: %s", level, checkedAt, error == null ? text : "failed: " + error);
+        }
+    }
+
+    private final long internalIntervalMs;
+    private final LocalTime windowStart;
+    private final Duration windowLength;
+    private final int fleetSlot;
+    private final int fleetSlots;
+
+    private final Map<String, PooledDevice<BillDispenser>> dispensers = new ConcurrentHashMap<String, PooledDevice<BillDispenser>>();
+    private final List<String> order = new ArrayList<String>();
+    private final Map<String, HealthSnapshot> internal = new ConcurrentHashMap<String, HealthSnapshot>();
+    private final Map<String, HealthSnapshot> external = new ConcurrentHashMap<String, HealthSnapshot>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Creates a health scheduler.
+     *
+     * @param internalIntervalMs - The time between internal checks of each dispenser, in milliseconds.
+     * @param windowStart - The local time the daily maintenance window opens.
+     * @param windowLength - The length of the maintenance window.
+     * @param fleetSlot - This host's position in the fleet, from 0.
+     * @param fleetSlots - The number of hosts in the fleet.
+     */
+    public HealthScheduler(long internalIntervalMs, LocalTime windowStart, Duration windowLength,
+            int fleetSlot, int fleetSlots) {
+        this.internalIntervalMs = internalIntervalMs;
+        this.windowStart = windowStart;
+        this.windowLength = windowLength;
+        this.fleetSlot = fleetSlot;
+        this.fleetSlots = fleetSlots;
+    }
+
+    /**
+     * Adds a dispenser. Dispensers must be added before start().
+     *
+     * @param logicalName - The logical device name.
+     * @param dispenser - The pooled dispenser service.
+     */
+    public synchronized void add(String logicalName, PooledDevice<BillDispenser> dispenser) {
+        dispensers.put(logicalName, dispenser);
+        order.add(logicalName);
+    }
+
+    /**
+     * Schedules the internal and external checks.
+     */
+    public synchronized void start() {
+        int count = order.size();
+        for (int i = 0; i < count; i++) {
+            final String name = order.get(i);
+
+            // Spread the internal checks evenly over one interval.
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    check(name, JposConst.JPOS_CH_INTERNAL);
+                }
+            }, internalIntervalMs * i / count, internalIntervalMs, TimeUnit.MILLISECONDS);
+
+            // Each dispenser in the fleet gets its own share of the maintenance window.
+            long offsetMs = windowLength.toMillis() * (fleetSlot * (long) count + i) / ((long) fleetSlots * count);
+            scheduleExternal(name, offsetMs);
+        }
+    }
+
+    /**
+     * Stops all checks. A check already running on a device completes.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Gets the latest health of a dispenser without touching the device.
+     *
+     * @param logicalName - The logical device name.
+     * @param level - JPOS_CH_INTERNAL or JPOS_CH_EXTERNAL.
+     * @return The latest snapshot, or null if that check has not run yet.
+     */
+    public HealthSnapshot getHealth(String logicalName, int level) {
+        return level == JposConst.JPOS_CH_EXTERNAL ? external.get(logicalName) : internal.get(logicalName);
+    }
+
+    private void scheduleExternal(final String name, final long offsetMs) {
+        ZonedDateTime now = ZonedDateTime.now();
+        ZonedDateTime opens = now.with(windowStart);
+        if (!opens.plus(Duration.ofMillis(offsetMs)).isAfter(now)) {
+            opens = opens.plusDays(1);
+        }
+        ZonedDateTime due = opens.plus(Duration.ofMillis(offsetMs));
+
+        // The end belongs to this occurrence of the window, even if it falls after midnight.
+        final ZonedDateTime windowEnd = opens.plus(windowLength);
+
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runExternal(name, offsetMs, windowEnd);
+            }
+        }, Duration.between(now, due).toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void runExternal(final String name, final long offsetMs, final ZonedDateTime windowEnd) {
+        if (check(name, JposConst.JPOS_CH_EXTERNAL)) {
+            scheduleExternal(name, offsetMs);
+            return;
+        }
+
+        // The dispenser was busy; try again shortly if this occurrence of the window is still open.
+        if (ZonedDateTime.now().plus(Duration.ofMillis(EXTERNAL_RETRY_MS)).isBefore(windowEnd)) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runExternal(name, offsetMs, windowEnd);
+                }
+            }, EXTERNAL_RETRY_MS, TimeUnit.MILLISECONDS);
+        } else {
+            scheduleExternal(name, offsetMs);
+        }
+    }
+
+    /**
+     * Determines whether the maintenance window is open.
+     *
+     * @param at - The time to test.
+     * @return True if the most recent opening of the window, possibly yesterday, has not yet closed.
+     */
+    private boolean isWindowOpen(ZonedDateTime at) {
+        ZonedDateTime opens = at.with(windowStart);
+        if (opens.isAfter(at)) {
+            opens = opens.minusDays(1);
+        }
+        return opens.plus(windowLength).isAfter(at);
+    }
+
+    /**
+     * Runs one check. An external check is refused outside the maintenance window.
+     *
+     * @return False if the dispenser was busy and the check should be retried.
+     */
+    private boolean check(String name, int level) {
+        if (level == JposConst.JPOS_CH_EXTERNAL && !isWindowOpen(ZonedDateTime.now())) {
+            System.out.println("External check of " + name + " refused outside the maintenance window.");
+            return true;
+        }
+
+        Map<String, HealthSnapshot> results = level == JposConst.JPOS_CH_EXTERNAL ? external : internal;
+
+        Lease<BillDispenser> lease;
+        try {
+            lease = dispensers.get(name).lease(LEASE_TIMEOUT_MS);
+        } catch (JposException e) {
+            if (e.getErrorCode() == JposConst.JPOS_E_TIMEOUT) {
+                return false;
+            }
+            results.put(name, new HealthSnapshot(level, null, System.currentTimeMillis(), e.getMessage()));
+            return true;
+        }
+
+        try {
+            lease.get().checkHealth(level);
+            results.put(name, new HealthSnapshot(level, lease.get().getCheckHealthText(), System.currentTimeMillis(), null));
+            lease.close();
+        } catch (JposException e) {
+            results.put(name, new HealthSnapshot(level, null, System.currentTimeMillis(), e.getMessage()));
+            if (JavaPOSSessionPool.isServiceLost(e)) {
+                lease.invalidate();
+            } else {
+                lease.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: this host's fleet slot and the number of fleet slots.
+     */
+    public static void main(String[] args) {
+        int fleetSlot = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int fleetSlots = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        JavaPOSSessionPool pool = new JavaPOSSessionPool(System.getProperty("java.io.tmpdir"));
+        PooledDevice<BillDispenser> f53 = pool.register("FUJITSU_F53", new JavaPOSSessionPool.ControlFactory<BillDispenser>() {
+            @Override
+            public BillDispenser create() {
+                return new BillDispenser();
+            }
+        }, false, true);
+
+        // Internal checks every minute; external checks between 02:00 and 04:00.
+        HealthScheduler health = new HealthScheduler(TimeUnit.MINUTES.toMillis(1), LocalTime.of(2, 0),
+                Duration.ofHours(2), fleetSlot, fleetSlots);
+        health.add("FUJITSU_F53", f53);
+        health.start();
+
+        // Callers read the cached health instantly.
+        try {
+            while (true) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                System.out.println("F53 internal health: " + health.getHealth("FUJITSU_F53", JposConst.JPOS_CH_INTERNAL));
+                System.out.println("F53 external health: " + health.getHealth("FUJITSU_F53", JposConst.JPOS_CH_EXTERNAL));
+            }
+        } catch (InterruptedException e) {
+            health.stop();
+            pool.close();
+        }
+
+        System.exit(0);
+    }
+}
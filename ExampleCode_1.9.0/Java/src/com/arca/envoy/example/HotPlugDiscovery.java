@@ -0,0 +1,358 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * HotPlugDiscovery.
+ *
+ * This example demonstrates event-driven device discovery. Rather than
+ * scanning getAllKnownDeviceInformation() on a timer to notice swapped
+ * hardware, a live index of the registered devices is built once and then
+ * kept current from USB_ATTACHED and USB_DETACHED events. The following
+ * actions are performed:
+ *
+ *  - Connect to the Envoy service
+ *  - Configure an Envoy event listener for USB attach and detach events
+ *  - Index the registered devices by logical device name (LDN); events
+ *    received meanwhile are held and applied afterwards, so no change
+ *    between the two steps is missed
+ *  - When a registered device is detached, remember its LDN as vacated
+ *  - When a device is attached, look it up by its detachment identifier:
+ *      - a known serial number is simply re-indexed
+ *      - an unknown unit of the same type as a vacated device is registered
+ *        under the vacated LDN, so the application keeps using the same name
+ *
+ * Devices on RS-232 ports or the network do not raise USB events. For those,
+ * the application calls probe() with the port or address identifier when it
+ * suspects a swap (for example, after a COMMERROR), and verify() to confirm
+ * that a registered unit is still present. Neither call scans the full list
+ * of known devices.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service is necessary to run this example.
+ *
+ * See README for compilation and running instructions.
+ */
+public class HotPlugDiscovery {
+
+    private final IEnvoySystem envoySystem;
+
+    /** Registered devices by logical device name. */
+    private final Map<String, DeviceInformation> devicesByName = new ConcurrentHashMap<String, DeviceInformation>();
+    /** Logical device names whose device has been detached, oldest first, by device type. */
+    private final Map<DeviceType, ConcurrentLinkedDeque<String>> vacatedNames = new ConcurrentHashMap<DeviceType, ConcurrentLinkedDeque<String>>();
+
+    /** Keeps RMI calls off the event callback thread, and applies changes in arrival order. */
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    /** Holds the worker until the initial index is built. */
+    private final CountDownLatch indexed = new CountDownLatch(1);
+
+    /**
+     * Creates a discovery index for the given Envoy service.
+     *
+     * @param envoySystem - The Envoy system object.
+     */
+    public HotPlugDiscovery(IEnvoySystem envoySystem) {
+        this.envoySystem = envoySystem;
+
+        // Events handled before start() finishes wait behind this, and are applied to the complete index.
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    indexed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the initial index from the registered devices. Register the event
+     * handler first, so that no attach or detach is missed while indexing.
+     * <p>
+     * This is the only pass over the registrations; afterwards the index is
+     * maintained from events and probes.
+     *
+     * @throws RemoteException - If the Envoy service could not be reached.
+     */
+    public void start() throws RemoteException {
+        try {
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                index(deviceName, envoySystem.getRegisteredDeviceInformation(deviceName));
+            }
+        } finally {
+            indexed.countDown();
+        }
+    }
+
+    /**
+     * Stops processing attach and detach notifications.
+     */
+    public void stop() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * Gets the current device information for a logical device name.
+     *
+     * @param deviceName - The logical device name.
+     * @return The device information, or null if the device is unknown or currently detached.
+     */
+    public DeviceInformation getDevice(String deviceName) {
+        return devicesByName.get(deviceName);
+    }
+
+    /**
+     * Handles an Envoy event, reacting only to USB attach and detach events.
+     *
+     * @param event - The Envoy event.
+     */
+    public void handleEnvoyEvent(Event event) {
+        final String identifier = detachmentIdentifierOf(event);
+        if (identifier == null) {
+            return;
+        }
+
+        switch (event.getEventType()) {
+            case USB_ATTACHED:
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attached(identifier);
+                    }
+                });
+                break;
+
+            case USB_DETACHED:
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        detached(identifier);
+                    }
+                });
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Probes a single RS-232 port or network address for a new or replaced device.
+     *
+     * @param detachmentIdentifier - The port or address identifier of the device.
+     */
+    public void probe(final String detachmentIdentifier) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                attached(detachmentIdentifier);
+            }
+        });
+    }
+
+    /**
+     * Confirms that the unit registered under a logical device name is still present.
+     * <p>
+     * A unit that can no longer be found by its serial number is treated as detached.
+     *
+     * @param deviceName - The logical device name.
+     */
+    public void verify(final String deviceName) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                DeviceInformation current = devicesByName.get(deviceName);
+                if (current == null) {
+                    return;
+                }
+
+                try {
+                    if (envoySystem.getDeviceInformationBySerialNumber(current.getSerialNumber()) == null) {
+                        vacate(deviceName);
+                    }
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void attached(String detachmentIdentifier) {
+        try {
+            DeviceInformation attached = envoySystem.getDeviceInformationByDetachmentIdentifer(detachmentIdentifier);
+            if (attached == null) {
+                return;
+            }
+
+            // The same unit coming back keeps its registration.
+            String deviceName = envoySystem.getRegisteredDeviceNameBySerialNumber(attached.getSerialNumber());
+            if (deviceName != null) {
+                removeVacated(attached.getDeviceType(), deviceName);
+                index(deviceName, envoySystem.getRegisteredDeviceInformation(deviceName));
+                System.out.println("Device re-attached: " + deviceName);
+                return;
+            }
+
+            // A different unit of a vacated type replaces the oldest vacated device.
+            ConcurrentLinkedDeque<String> vacated = vacatedNames.get(attached.getDeviceType());
+            String replacedName = vacated == null ? null : vacated.poll();
+            if (replacedName == null) {
+                System.out.println("Unregistered device attached: " + attached.getDeviceType());
+                return;
+            }
+
+            // The name must be free before it can be registered again, so the old
+            // registration is restored if the replacement cannot take it over.
+            DeviceInformation previous = null;
+            boolean registered = false;
+            try {
+                previous = envoySystem.unregister(replacedName);
+                registered = envoySystem.register(replacedName, attached);
+            } finally {
+                if (!registered) {
+                    vacated.addFirst(replacedName);
+                    restore(replacedName, previous);
+                }
+            }
+            if (registered) {
+                index(replacedName, attached);
+                System.out.println("Replacement device registered as: " + replacedName);
+            } else {
+                System.out.println("Unable to register replacement device as: " + replacedName);
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void restore(String deviceName, DeviceInformation previous) {
+        if (previous == null) {
+            return;
+        }
+        try {
+            if (!envoySystem.register(deviceName, previous)) {
+                System.out.println("Unable to restore the registration of: " + deviceName);
+            }
+        } catch (RemoteException e) {
+            System.out.println("Unable to restore the registration of: " + deviceName);
+            e.printStackTrace();
+        }
+    }
+
+    private void detached(String detachmentIdentifier) {
+        try {
+            String deviceName = envoySystem.getRegisteredDeviceNameByDetachementIdentifer(detachmentIdentifier);
+            if (deviceName != null) {
+                vacate(deviceName);
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void index(String deviceName, DeviceInformation deviceInformation) {
+        devicesByName.put(deviceName, deviceInformation);
+    }
+
+    private void vacate(String deviceName) {
+        DeviceInformation removed = devicesByName.remove(deviceName);
+        if (removed == null) {
+            return;
+        }
+
+        ConcurrentLinkedDeque<String> vacated = vacatedNames.get(removed.getDeviceType());
+        if (vacated == null) {
+            vacatedNames.putIfAbsent(removed.getDeviceType(), new ConcurrentLinkedDeque<String>());
+            vacated = vacatedNames.get(removed.getDeviceType());
+        }
+        vacated.addLast(deviceName);
+        System.out.println("Device detached: " + deviceName);
+    }
+
+    private void removeVacated(DeviceType deviceType, String deviceName) {
+        ConcurrentLinkedDeque<String> vacated = vacatedNames.get(deviceType);
+        if (vacated != null) {
+            vacated.remove(deviceName);
+        }
+    }
+
+    /**
+     * Extracts the detachment identifier carried by a USB attach or detach event.
+     * <p>
+     * The Envoy API has no typed event data for these events. This example assumes
+     * the event data's string form is the detachment identifier, as accepted by
+     * getDeviceInformationByDetachmentIdentifer(); check this against the Envoy
+     * API version in use.
+     *
+     * @param event - The Envoy event.
+     * @return The detachment identifier, or null if the event does not carry one.
+     */
+    private static String detachmentIdentifierOf(Event event) {
+        if (event == null || event.getEventData() == null) {
+            return null;
+        }
+        return event.getEventData().toString();
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            // Follow USB attach and detach events, then build the initial index from the registered devices.
+            final HotPlugDiscovery discovery = new HotPlugDiscovery(envoySystem);
+            EnvoyEventListener eel = new EnvoyEventListener();
+            eel.registerHandler(new IEnvoyEventHandler() {
+                @Override
+                public void handleEnvoyEvent(Event evt) {
+                    if (evt != null) {
+                        discovery.handleEnvoyEvent(evt);
+                    }
+                }
+            });
+            discovery.start();
+
+            System.out.println("Watching for attached and detached devices; press Ctrl+C to exit.");
+            Thread.currentThread().join();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,408 @@
+package com.arca.envoy.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jpos.BaseJposControl;
+import jpos.BillDispenser;
+import jpos.CoinAcceptor;
+import jpos.ItemDispenser;
+import jpos.JposConst;
+import jpos.JposException;
+
+import com.arca.envoy.javapos.Init;
+
+/**
+ * JavaPOSSessionPool.
+ *
+ * This example demonstrates keeping JavaPOS device services open across
+ * transactions. The JavaPOS examples call Init.setup(), open(), claim() and
+ * setDeviceEnabled(true) before, and release() and close() after, every use.
+ * A POS application that repeats this per transaction pays for it each time.
+ *
+ * The pool opens, claims and enables each registered service once, and then
+ * hands out exclusive leases. Not every Envoy service implements every step:
+ * claim is a No-Op on the Fujitsu F53, so it never reports itself claimed,
+ * and setDeviceEnabled() is Not Implemented on the RCD. Each device is
+ * registered with flags saying which steps apply, and the pool neither
+ * performs nor checks the others.
+ *
+ *
+ *  - lease() waits up to a timeout for the service, like claim(timeout), and
+ *    fails with JPOS_E_TIMEOUT if another thread still holds it
+ *  - A lease is returned with close(), so try-with-resources works
+ *  - A lease whose user saw the service disappear (for example after an
+ *    Envoy service restart) is returned with invalidate(); the next lease
+ *    re-opens the service transparently
+ *  - Before handing out a lease, the pool checks that the service is still
+ *    open, and claimed and enabled where that applies, and re-opens it if not
+ *
+ * The demonstration runs several short transactions against a Fujitsu F53
+ * bill dispenser, a Cummins Jetsort coin acceptor and a Banking Automation
+ * RCD item dispenser, using the same default logical names as the other
+ * JavaPOS examples.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered F53 named 'FUJITSU_F53', Jetsort named 'JETSORT' and RCD named 'RCD'.
+ *
+ * See README for compilation and running instructions.
+ */
+public class JavaPOSSessionPool {
+
+    private static final int CLAIM_TIMEOUT = 5000;
+    private static final int TRANSACTIONS = 3;
+
+    /**
+     * Creates a new, unopened device control.
+     *
+     * @param <C> - The control type.
+     */
+    public interface ControlFactory<C extends BaseJposControl> {
+        /**
+         * Creates the control.
+         *
+         * @return A new control instance.
+         */
+        C create();
+    }
+
+    /**
+     * A pooled device service, opened once and leased exclusively.
+     *
+     * @param <C> - The control type.
+     */
+    public static final class PooledDevice<C extends BaseJposControl> {
+        private final String logicalName;
+        private final ControlFactory<C> factory;
+        private final boolean reportsClaim;
+        private final boolean enables;
+        private final Semaphore available = new Semaphore(1, true);
+        private C control;
+        private boolean invalid = true;
+
+        PooledDevice(String logicalName, ControlFactory<C> factory, boolean reportsClaim, boolean enables) {
+            this.logicalName = logicalName;
+            this.factory = factory;
+            this.reportsClaim = reportsClaim;
+            this.enables = enables;
+        }
+
+        /**
+         * Leases the device service, re-opening it first if necessary.
+         *
+         * @param timeoutMs - The maximum time to wait for another lease to be returned, in milliseconds.
+         * @return The lease.
+         * @throws JposException - JPOS_E_TIMEOUT if the service stayed leased, or the error from re-opening it.
+         */
+        public Lease<C> lease(long timeoutMs) throws JposException {
+            try {
+                if (!available.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new JposException(JposConst.JPOS_E_TIMEOUT, logicalName + " is leased by another thread.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JposException(JposConst.JPOS_E_FAILURE, "Interrupted waiting for " + logicalName + ".");
+            }
+
+            try {
+                if (invalid || !isReady()) {
+                    reopen();
+                }
+                return new Lease<C>(this);
+            } catch (JposException e) {
+                available.release();
+                throw e;
+            }
+        }
+
+        private boolean isReady() {
+            try {
+                return control.getState() != JposConst.JPOS_S_CLOSED
+                        && (!reportsClaim || control.getClaimed())
+                        && (!enables || control.getDeviceEnabled());
+            } catch (JposException e) {
+                return false;
+            }
+        }
+
+        private void reopen() throws JposException {
+            shutdown();
+
+            C fresh = factory.create();
+            fresh.open(logicalName);
+            fresh.claim(CLAIM_TIMEOUT);
+            if (enables) {
+                fresh.setDeviceEnabled(true);
+            }
+
+            control = fresh;
+            invalid = false;
+        }
+
+        private void shutdown() {
+            if (control == null) {
+                return;
+            }
+
+            // Best effort; after a service restart these calls are expected to fail.
+            if (enables) {
+                try {
+                    control.setDeviceEnabled(false);
+                } catch (JposException e) {
+                    // Already unusable.
+                }
+            }
+            try {
+                control.release();
+            } catch (JposException e) {
+                // Already released.
+            }
+            try {
+                control.close();
+            } catch (JposException e) {
+                // Already closed.
+            }
+            control = null;
+            invalid = true;
+        }
+
+        void giveBack(boolean stillValid) {
+            if (!stillValid) {
+                invalid = true;
+            }
+            available.release();
+        }
+
+        void close() {
+            available.acquireUninterruptibly();
+            try {
+                shutdown();
+            } finally {
+                available.release();
+            }
+        }
+    }
+
+    /**
+     * Exclusive use of a pooled device service until closed.
+     *
+     * @param <C> - The control type.
+     */
+    public static final class Lease<C extends BaseJposControl> implements AutoCloseable {
+        private final PooledDevice<C> device;
+        private boolean returned;
+
+        Lease(PooledDevice<C> device) {
+            this.device = device;
+        }
+
+        /**
+         * Gets the opened and claimed control, enabled if the service supports it.
+         *
+         * @return The control.
+         */
+        public C get() {
+            if (returned) {
+                throw new IllegalStateException("Lease already returned.");
+            }
+            return device.control;
+        }
+
+        /**
+         * Returns the lease and marks the service for re-opening before its next use.
+         */
+        public void invalidate() {
+            if (!returned) {
+                returned = true;
+                device.giveBack(false);
+            }
+        }
+
+        /**
+         * Returns the lease, leaving the service open for the next transaction.
+         */
+        @Override
+        public void close() {
+            if (!returned) {
+                returned = true;
+                device.giveBack(true);
+            }
+        }
+    }
+
+    private final List<PooledDevice<?>> devices = new ArrayList<PooledDevice<?>>();
+
+    /**
+     * Creates a pool, initializing JavaPOS.
+     *
+     * @param configDirectory - The directory passed to Init.setup().
+     */
+    public JavaPOSSessionPool(String configDirectory) {
+        Init.setup(configDirectory);
+    }
+
+    /**
+     * Adds a device service to the pool. The service is opened on its first lease.
+     *
+     * @param logicalName - The logical device name.
+     * @param factory - Creates the device control.
+     * @param reportsClaim - Whether getClaimed() reflects claim(); false where claim is a No-Op, as on the F53.
+     * @param enables - Whether setDeviceEnabled() is implemented; false on the RCD.
+     * @param <C> - The control type.
+     * @return The pooled device.
+     */
+    public synchronized <C extends BaseJposControl> PooledDevice<C> register(String logicalName, ControlFactory<C> factory,
+            boolean reportsClaim, boolean enables) {
+        PooledDevice<C> device = new PooledDevice<C>(logicalName, factory, reportsClaim, enables);
+        devices.add(device);
+        return device;
+    }
+
+    /**
+     * Opens every registered service now, so the first transaction does not pay for it.
+     */
+    public synchronized void warmUp() {
+        for (PooledDevice<?> device : devices) {
+            try {
+                device.lease(CLAIM_TIMEOUT).close();
+            } catch (JposException e) {
+                System.out.println("Unable to open " + device.logicalName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Disables where supported, releases and closes every service in the pool.
+     */
+    public synchronized void close() {
+        for (PooledDevice<?> device : devices) {
+            device.close();
+        }
+    }
+
+    /**
+     * Determines whether an error means the service must be re-opened.
+     *
+     * @param e - The JavaPOS error.
+     * @return True if the service is closed, offline or gone.
+     */
+    public static boolean isServiceLost(JposException e) {
+        switch (e.getErrorCode()) {
+            case JposConst.JPOS_E_CLOSED:
+            case JposConst.JPOS_E_NOTCLAIMED:
+            case JposConst.JPOS_E_NOSERVICE:
+            case JposConst.JPOS_E_OFFLINE:
+            case JposConst.JPOS_E_NOHARDWARE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * One use of a leased device within a transaction.
+     *
+     * @param <C> - The control type.
+     */
+    private interface DeviceTransaction<C extends BaseJposControl> {
+        /**
+         * Uses the device.
+         *
+         * @param control - The leased control.
+         * @throws JposException - If the device reported an error.
+         */
+        void run(C control) throws JposException;
+    }
+
+    /**
+     * Leases a device for one use, returning the lease when done and invalidating it if the service was lost.
+     *
+     * @param device - The pooled device.
+     * @param label - The device name used in messages.
+     * @param transaction - The use of the device.
+     * @param <C> - The control type.
+     */
+    private static <C extends BaseJposControl> void transact(PooledDevice<C> device, String label,
+            DeviceTransaction<C> transaction) {
+        try (Lease<C> lease = device.lease(CLAIM_TIMEOUT)) {
+            try {
+                transaction.run(lease.get());
+            } catch (JposException e) {
+                if (isServiceLost(e)) {
+                    lease.invalidate();
+                }
+                throw e;
+            }
+        } catch (JposException e) {
+            System.out.println(label + " transaction failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        JavaPOSSessionPool pool = new JavaPOSSessionPool(System.getProperty("java.io.tmpdir"));
+
+        PooledDevice<BillDispenser> bills = pool.register("FUJITSU_F53", new ControlFactory<BillDispenser>() {
+            @Override
+            public BillDispenser create() {
+                return new BillDispenser();
+            }
+        }, false, true);
+        PooledDevice<CoinAcceptor> coins = pool.register("JETSORT", new ControlFactory<CoinAcceptor>() {
+            @Override
+            public CoinAcceptor create() {
+                return new CoinAcceptor();
+            }
+        }, true, true);
+        PooledDevice<ItemDispenser> rolls = pool.register("RCD", new ControlFactory<ItemDispenser>() {
+            @Override
+            public ItemDispenser create() {
+                return new ItemDispenser();
+            }
+        }, true, false);
+
+        long start = System.nanoTime();
+        pool.warmUp();
+        System.out.println("Opened all services in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+
+        for (int i = 1; i <= TRANSACTIONS; i++) {
+            start = System.nanoTime();
+
+            transact(bills, "F53", new DeviceTransaction<BillDispenser>() {
+                @Override
+                public void run(BillDispenser control) throws JposException {
+                    control.checkHealth(JposConst.JPOS_CH_INTERNAL);
+                    System.out.println("F53 health: " + control.getCheckHealthText());
+                }
+            });
+
+            transact(coins, "Jetsort", new DeviceTransaction<CoinAcceptor>() {
+                @Override
+                public void run(CoinAcceptor control) throws JposException {
+                    System.out.println("Jetsort deposit amount: " + control.getDepositAmount());
+                }
+            });
+
+            transact(rolls, "RCD", new DeviceTransaction<ItemDispenser>() {
+                @Override
+                public void run(ItemDispenser control) throws JposException {
+                    int[] count = new int[1];
+                    control.readItemCount(count, 1);
+                    System.out.println("RCD silo 1 rolls: " + count[0]);
+                }
+            });
+
+            System.out.println("Transaction " + i + " took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        }
+
+        pool.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,475 @@
+package com.arca.envoy.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.currency.MoneyGram;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.enumtypes.JetsortBagTotalsView;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.IJetsortDevice;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * JetsortReconciliation.
+ *
+ * This example demonstrates an end-of-day reconciliation of Cummins Jetsort
+ * bag totals against the deposits the POS recorded. Done one sorter at a
+ * time, reading each bag-total view in turn and clearing each denomination
+ * with its own call, closing a store with several sorters takes minutes.
+ *
+ * The reconciliation in this example:
+ *
+ *  - Reads every sorter at the same time, with one task per sorter on a
+ *    plain thread pool; each task reads the batch, sub-batch, day and
+ *    container views of its sorter in turn, since one sorter answers one
+ *    command at a time over its serial link and reading its views at once
+ *    would only queue them
+ *  - Compares the day view of each sorter with the recorded deposit counts,
+ *    and reports every denomination whose counts differ
+ *  - Clears the bag totals of every sorter that reconciled cleanly, with the
+ *    sorters cleared in parallel; sorters with a discrepancy or a read
+ *    error are left untouched for investigation
+ *
+ * The Envoy API has no command that clears all bag totals at once: Clear Bag
+ * Total must be performed for each denomination individually. The clear of
+ * one sorter is therefore kept behind a single method, clearBagTotals(),
+ * that issues those calls back to back and stops at the first failure; it
+ * is the one place to change should a batched command become available.
+ *
+ * Clearing wipes whatever the totals hold at that moment, including deposits
+ * made after they were read. Each sorter's totals are therefore read again
+ * just before it is cleared, and a sorter whose totals have changed since the
+ * reconciliation is not cleared. A deposit in the moment between that read
+ * and the clear is still lost, so the sorters should be idle, with the day's
+ * batch closed, while the clear runs.
+ *
+ * The recorded deposits are read from a properties file with one line per
+ * sorter and denomination, for example "JETSORT.USD:COIN:25=120".
+ *
+ * Usage:
+ *
+ *   JetsortReconciliation [recorded-deposits-file] [clear]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - One or more registered Jetsort coin sorters.
+ *
+ * See README for compilation and running instructions.
+ */
+public class JetsortReconciliation {
+
+    /** The view compared with the recorded deposits. */
+    private static final JetsortBagTotalsView RECONCILED_VIEW = JetsortBagTotalsView.DAY;
+
+    /**
+     * A denomination whose counted total differs from the recorded total.
+     */
+    public static final class Discrepancy {
+        private final Denomination denomination;
+        private final int recorded;
+        private final int counted;
+
+        Discrepancy(Denomination denomination, int recorded, int counted) {
+            this.denomination = denomination;
+            this.recorded = recorded;
+            this.counted = counted;
+        }
+
+        /**
+         * Gets the denomination.
+         *
+         * @return The denomination.
+         */
+        public Denomination getDenomination() {
+            return denomination;
+        }
+
+        /**
+         * Gets the number of pieces the POS recorded.
+         *
+         * @return The recorded count.
+         */
+        public int getRecorded() {
+            return recorded;
+        }
+
+        /**
+         * Gets the number of pieces the sorter counted.
+         *
+         * @return The counted count.
+         */
+        public int getCounted() {
+            return counted;
+        }
+
+        @Override
+        public String toString() {
+            return denomination + ": recorded " + recorded + ", counted " + counted;
+        }
+    }
+
+    /**
+     * The reconciliation of one sorter.
+     */
+    public static final class SorterReport {
+        private final String deviceName;
+        private final Map<JetsortBagTotalsView, Map<Denomination, Integer>> views;
+        private final List<Discrepancy> discrepancies;
+        private final Exception error;
+
+        SorterReport(String deviceName, Map<JetsortBagTotalsView, Map<Denomination, Integer>> views,
+                List<Discrepancy> discrepancies, Exception error) {
+            this.deviceName = deviceName;
+            this.views = Collections.unmodifiableMap(views);
+            this.discrepancies = Collections.unmodifiableList(discrepancies);
+            this.error = error;
+        }
+
+        /**
+         * Gets the logical device name of the sorter.
+         *
+         * @return The logical device name.
+         */
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        /**
+         * Gets the counts of one bag-total view.
+         *
+         * @param view - The view.
+         * @return The count of each denomination, or null if the view could not be read.
+         */
+        public Map<Denomination, Integer> getView(JetsortBagTotalsView view) {
+            return views.get(view);
+        }
+
+        /**
+         * Gets the denominations whose counts differ from the recorded deposits.
+         *
+         * @return The discrepancies.
+         */
+        public List<Discrepancy> getDiscrepancies() {
+            return discrepancies;
+        }
+
+        /**
+         * Gets the error that prevented reading the sorter.
+         *
+         * @return The error, or null if every view was read.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Determines whether the sorter may be cleared.
+         *
+         * @return True if every view was read and no denomination differs.
+         */
+        public boolean isReconciled() {
+            return error == null && discrepancies.isEmpty();
+        }
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a reconciliation.
+     *
+     * @param parallelism - The most sorters read or cleared at once.
+     */
+    public JetsortReconciliation(int parallelism) {
+        this.executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Reads every sorter and compares it with the recorded deposits.
+     *
+     * @param sorters - The sorters, by logical device name.
+     * @param recorded - The recorded count of each denomination, by logical device name.
+     * @return One report per sorter, in the order of the sorters.
+     */
+    public List<SorterReport> reconcile(Map<String, IJetsortDevice> sorters, Map<String, Map<Denomination, Integer>> recorded) {
+        Map<String, Future<SorterReport>> tasks = new LinkedHashMap<String, Future<SorterReport>>();
+        for (final Map.Entry<String, IJetsortDevice> sorter : sorters.entrySet()) {
+            Map<Denomination, Integer> deposits = recorded.get(sorter.getKey());
+            final Map<Denomination, Integer> expected = deposits == null ? Collections.<Denomination, Integer>emptyMap() : deposits;
+            tasks.put(sorter.getKey(), executor.submit(new Callable<SorterReport>() {
+                @Override
+                public SorterReport call() {
+                    return reconcileSorter(sorter.getKey(), sorter.getValue(), expected);
+                }
+            }));
+        }
+
+        List<SorterReport> reports = new ArrayList<SorterReport>();
+        for (Map.Entry<String, Future<SorterReport>> task : tasks.entrySet()) {
+            Exception error;
+            try {
+                reports.add(task.getValue().get());
+                continue;
+            } catch (ExecutionException e) {
+                error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+            }
+            reports.add(new SorterReport(task.getKey(),
+                    new EnumMap<JetsortBagTotalsView, Map<Denomination, Integer>>(JetsortBagTotalsView.class),
+                    new ArrayList<Discrepancy>(), error));
+        }
+        return reports;
+    }
+
+    private static SorterReport reconcileSorter(String deviceName, IJetsortDevice sorter, Map<Denomination, Integer> recorded) {
+        Map<JetsortBagTotalsView, Map<Denomination, Integer>> views =
+                new EnumMap<JetsortBagTotalsView, Map<Denomination, Integer>>(JetsortBagTotalsView.class);
+        Exception error = null;
+        for (JetsortBagTotalsView view : JetsortBagTotalsView.values()) {
+            try {
+                views.put(view, count(sorter.getBagTotals(view)));
+            } catch (RemoteException e) {
+                // Keep reading the sorter's other views.
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+
+        List<Discrepancy> discrepancies = new ArrayList<Discrepancy>();
+        Map<Denomination, Integer> counted = views.get(RECONCILED_VIEW);
+        if (counted != null) {
+            Map<Denomination, Integer> all = new HashMap<Denomination, Integer>(recorded);
+            for (Denomination denom : counted.keySet()) {
+                if (!all.containsKey(denom)) {
+                    all.put(denom, 0);
+                }
+            }
+            for (Map.Entry<Denomination, Integer> expected : all.entrySet()) {
+                Integer actual = counted.get(expected.getKey());
+                int countedPieces = actual == null ? 0 : actual;
+                if (countedPieces != expected.getValue()) {
+                    discrepancies.add(new Discrepancy(expected.getKey(), expected.getValue(), countedPieces));
+                }
+            }
+        }
+        return new SorterReport(deviceName, views, discrepancies, error);
+    }
+
+    /**
+     * Clears the bag totals of every reconciled sorter, all sorters in parallel.
+     *
+     * @param sorters - The sorters, by logical device name.
+     * @param reports - The reports from reconcile().
+     * @return The error of every sorter that could not be cleared completely.
+     */
+    public Map<String, Exception> clear(Map<String, IJetsortDevice> sorters, List<SorterReport> reports) {
+        final Map<String, Exception> errors = new ConcurrentHashMap<String, Exception>();
+        Map<String, Future<?>> clears = new LinkedHashMap<String, Future<?>>();
+        for (final SorterReport report : reports) {
+            final IJetsortDevice sorter = sorters.get(report.getDeviceName());
+            if (!report.isReconciled() || sorter == null) {
+                continue;
+            }
+            clears.put(report.getDeviceName(), executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Deposits made since the reconciliation would be wiped by the clear; leave the sorter alone.
+                        Map<Denomination, Integer> reconciled = report.getView(RECONCILED_VIEW);
+                        if (!count(sorter.getBagTotals(RECONCILED_VIEW)).equals(reconciled)) {
+                            errors.put(report.getDeviceName(), new IllegalStateException("Bag totals changed since reconciliation."));
+                            return;
+                        }
+                        clearBagTotals(sorter, reconciled.keySet());
+                    } catch (RemoteException e) {
+                        errors.put(report.getDeviceName(), e);
+                    }
+                }
+            }));
+        }
+
+        for (Map.Entry<String, Future<?>> clear : clears.entrySet()) {
+            try {
+                clear.getValue().get();
+            } catch (ExecutionException e) {
+                errors.put(clear.getKey(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.put(clear.getKey(), e);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Stops the pool's threads.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Clears the bag totals of the given denominations on one sorter.
+     * <p>
+     * The Envoy API clears one denomination per Clear Bag Total command, so this
+     * is a batch only in that the calls are issued back to back by one task.
+     * If a call fails, the remaining denominations are not cleared.
+     *
+     * @param sorter - The sorter.
+     * @param denominations - The denominations to clear.
+     * @throws RemoteException - If a Clear Bag Total command failed.
+     */
+    private static void clearBagTotals(IJetsortDevice sorter, Iterable<Denomination> denominations) throws RemoteException {
+        for (Denomination denom : denominations) {
+            sorter.clearBagTotal(denom);
+        }
+    }
+
+    /**
+     * Counts the pieces of each denomination in a MoneyGram.
+     * <p>
+     * The only MoneyGram accessor used by the SDK examples is getDenoms(), which
+     * lists the note of a one-note event once. This method assumes the list holds
+     * one entry per piece, and counts the entries; if the Envoy API version in
+     * use reports quantities instead, only this method needs to change.
+     *
+     * @param totals - The MoneyGram, or null.
+     * @return The count of each denomination.
+     */
+    private static Map<Denomination, Integer> count(MoneyGram totals) {
+        Map<Denomination, Integer> counts = new HashMap<Denomination, Integer>();
+        if (totals != null) {
+            for (Denomination denom : totals.getDenoms()) {
+                Integer count = counts.get(denom);
+                counts.put(denom, (count == null ? 0 : count) + 1);
+            }
+        }
+        return counts;
+    }
+
+    private static Map<String, Map<Denomination, Integer>> loadRecorded(File file) throws IOException {
+        Map<String, Map<Denomination, Integer>> recorded = new HashMap<String, Map<Denomination, Integer>>();
+        if (!file.exists()) {
+            return recorded;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            // DEVICE.CURRENCY:MONEYTYPE:VALUE=count
+            int dot = key.lastIndexOf('.');
+            String[] denom = key.substring(dot + 1).split(":");
+            Denomination denomination = CurCodeEnum.valueOf(denom[0]).denom(MoneyTypeEnum.valueOf(denom[1]), Integer.parseInt(denom[2]));
+
+            Map<Denomination, Integer> deposits = recorded.get(key.substring(0, dot));
+            if (deposits == null) {
+                deposits = new HashMap<Denomination, Integer>();
+                recorded.put(key.substring(0, dot), deposits);
+            }
+            deposits.put(denomination, Integer.parseInt(properties.getProperty(key).trim()));
+        }
+        return recorded;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the recorded deposits file, and "clear" to clear reconciled sorters.
+     */
+    public static void main(String[] args) {
+        File recordedFile = new File(args.length > 0 ? args[0] : "recorded-deposits.properties");
+        boolean clear = args.length > 1 && "clear".equals(args[1]);
+
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            Map<String, IJetsortDevice> sorters = new LinkedHashMap<String, IJetsortDevice>();
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.JETSORT) {
+                    sorters.put(deviceName, (IJetsortDevice) Naming.lookup(envoySystem.getDevicePath(deviceName)));
+                }
+            }
+            if (sorters.isEmpty()) {
+                System.out.println("No registered Jetsort found.");
+                System.exit(1);
+            }
+
+            JetsortReconciliation reconciliation = new JetsortReconciliation(sorters.size());
+
+            long start = System.nanoTime();
+            List<SorterReport> reports = reconciliation.reconcile(sorters, loadRecorded(recordedFile));
+            System.out.println("Read " + sorters.size() + " sorters in " + (System.nanoTime() - start) / 1000000 + " ms.");
+
+            for (SorterReport report : reports) {
+                if (report.getError() != null) {
+                    System.out.println(report.getDeviceName() + ": unable to read totals: " + report.getError().getMessage());
+                } else if (report.isReconciled()) {
+                    System.out.println(report.getDeviceName() + ": reconciled.");
+                } else {
+                    System.out.println(report.getDeviceName() + ": " + report.getDiscrepancies().size() + " discrepancies:");
+                    for (Discrepancy discrepancy : report.getDiscrepancies()) {
+                        System.out.println("\t" + discrepancy);
+                    }
+                }
+            }
+
+            if (clear) {
+                Map<String, Exception> errors = reconciliation.clear(sorters, reports);
+                for (Map.Entry<String, Exception> error : errors.entrySet()) {
+                    System.out.println(error.getKey() + ": unable to clear totals: " + error.getValue().getMessage());
+                }
+            }
+            reconciliation.close();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,407 @@
+package com.arca.envoy.example;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+
+/**
+ * ManagedEventListener.
+ *
+ * This example demonstrates an event listener with a defined lifetime. Each
+ * EnvoyEventListener is an exported RMI object, and a handler registered on
+ * it stays reachable for as long as the listener does; a long-running
+ * application that creates a new listener after every error slowly collects
+ * exported objects, handlers and threads that are never released.
+ *
+ * A managed listener:
+ *
+ *  - Is closed explicitly, which unexports its EnvoyEventListener, stops its
+ *    dispatch thread and drops its handlers
+ *  - Holds its handlers until they are unregistered or the listener is
+ *    closed, so an anonymous handler keeps receiving events without the
+ *    application keeping a reference to it
+ *  - Queues events in a bounded queue and returns from the service's
+ *    callback at once; when the queue is full, either the oldest or the
+ *    newest event is dropped, and dropped events are counted
+ *  - Keeps a record of where every open listener was created, and reports a
+ *    listener that became unreachable without being closed, so leaks are
+ *    found where they start; only this tracking refers to the listener
+ *    weakly, so that it does not itself keep the listener reachable
+ *
+ * A handler that refers to its own listener keeps the listener reachable
+ * through the exported EnvoyEventListener, so such a listener is never
+ * reported if it is left open; close it explicitly.
+ *
+ * Unexporting requires the EnvoyEventListener to be the exported remote
+ * object itself. If an Envoy API version exports some other object on its
+ * behalf, that object cannot be reached from here; closing then still stops
+ * delivery and releases the handlers and thread, but the export lasts until
+ * the JVM exits, and a warning says so the first time it happens.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *
+ * See README for compilation and running instructions.
+ */
+public class ManagedEventListener implements Closeable {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long POLL_MS = 500;
+    private static final AtomicBoolean UNEXPORT_WARNED = new AtomicBoolean();
+
+    /**
+     * What to do with an event that arrives while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the oldest queued event to make room. */
+        DROP_OLDEST,
+        /** Drop the arriving event. */
+        DROP_NEWEST
+    }
+
+    /**
+     * A listener's counters at one point in time.
+     */
+    public static final class Statistics {
+        private final long delivered;
+        private final long dropped;
+        private final int queued;
+        private final int handlers;
+
+        Statistics(long delivered, long dropped, int queued, int handlers) {
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.queued = queued;
+            this.handlers = handlers;
+        }
+
+        /**
+         * Gets the number of events handed to the handlers.
+         *
+         * @return The delivered event count.
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * Gets the number of events dropped because the queue was full.
+         *
+         * @return The dropped event count.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Gets the number of events waiting to be delivered.
+         *
+         * @return The queue length.
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Gets the number of registered handlers.
+         *
+         * @return The handler count.
+         */
+        public int getHandlers() {
+            return handlers;
+        }
+
+        @Override
+        public String toString() {
+            return "delivered=" + delivered + ", dropped=" + dropped + ", queued=" + queued + ", handlers=" + handlers;
+        }
+    }
+
+    /**
+     * Everything a listener owns. It refers to nothing that refers back to the
+     * ManagedEventListener, so an unclosed listener can still be collected and reported.
+     */
+    private static final class State implements IEnvoyEventHandler, Runnable {
+        private final OverflowPolicy overflowPolicy;
+        private final BlockingQueue<Event> queue;
+        private final List<IEnvoyEventHandler> handlers = new CopyOnWriteArrayList<IEnvoyEventHandler>();
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final Throwable createdAt;
+        private final Thread dispatcher;
+        private EnvoyEventListener listener;
+        private volatile boolean closed;
+
+        State(int capacity, OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            this.queue = new ArrayBlockingQueue<Event>(capacity);
+            this.createdAt = new Throwable("Listener created here");
+            this.dispatcher = new Thread(this, "event-dispatcher");
+            this.dispatcher.setDaemon(true);
+        }
+
+        @Override
+        public void handleEnvoyEvent(Event evt) {
+            if (evt == null || closed) {
+                return;
+            }
+
+            while (!queue.offer(evt)) {
+                dropped.incrementAndGet();
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return;
+                }
+                queue.poll();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    Event event = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (event != null) {
+                        dispatch(event);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void dispatch(Event event) {
+            for (IEnvoyEventHandler handler : handlers) {
+                try {
+                    handler.handleEnvoyEvent(event);
+                } catch (RuntimeException e) {
+                    // One failing handler must not stop delivery to the others.
+                    e.printStackTrace();
+                }
+            }
+            delivered.incrementAndGet();
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dispatcher.interrupt();
+            handlers.clear();
+            queue.clear();
+
+            // The listener is exported when it is created; unexporting it releases it on both sides.
+            Object exported = listener;
+            if (exported instanceof Remote) {
+                try {
+                    UnicastRemoteObject.unexportObject((Remote) exported, true);
+                } catch (NoSuchObjectException e) {
+                    // Already unexported.
+                }
+            } else if (exported != null && UNEXPORT_WARNED.compareAndSet(false, true)) {
+                System.out.println("Warning: " + exported.getClass().getName() + " is not a remote object, so its"
+                        + " export cannot be released; each closed listener stays exported until the JVM exits.");
+            }
+            listener = null;
+        }
+    }
+
+    /**
+     * Tracks a listener, to report it if it is collected without being closed.
+     */
+    private static final class Tracker extends WeakReference<ManagedEventListener> {
+        private final State state;
+
+        Tracker(ManagedEventListener listener, State state) {
+            super(listener, COLLECTED);
+            this.state = state;
+        }
+    }
+
+    private static final ReferenceQueue<ManagedEventListener> COLLECTED = new ReferenceQueue<ManagedEventListener>();
+    private static final Set<Tracker> OPEN = ConcurrentHashMap.newKeySet();
+
+    static {
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Reference<? extends ManagedEventListener> reference = COLLECTED.remove();
+                        Tracker tracker = (Tracker) reference;
+                        if (OPEN.remove(tracker)) {
+                            System.out.println("An event listener was not closed; closing it now.");
+                            tracker.state.createdAt.printStackTrace(System.out);
+                            tracker.state.close();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "event-listener-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private final State state;
+    private final Tracker tracker;
+
+    /**
+     * Creates a listener and starts receiving events.
+     *
+     * @param capacity - The most events queued for delivery.
+     * @param overflowPolicy - What to do with an event that arrives while the queue is full.
+     * @throws RemoteException - If the listener could not be created.
+     */
+    public ManagedEventListener(int capacity, OverflowPolicy overflowPolicy) throws RemoteException {
+        this.state = new State(capacity, overflowPolicy);
+        this.state.listener = new EnvoyEventListener();
+        this.state.listener.registerHandler(state);
+        this.state.dispatcher.start();
+
+        this.tracker = new Tracker(this, state);
+        OPEN.add(tracker);
+    }
+
+    /**
+     * Registers a handler. The handler is held until it is unregistered or the listener is closed.
+     *
+     * @param handler - The handler, called on the listener's dispatch thread.
+     */
+    public void registerHandler(IEnvoyEventHandler handler) {
+        if (state.closed) {
+            throw new IllegalStateException("The listener is closed.");
+        }
+        state.handlers.add(handler);
+    }
+
+    /**
+     * Unregisters a handler.
+     *
+     * @param handler - The handler.
+     */
+    public void unregisterHandler(IEnvoyEventHandler handler) {
+        state.handlers.remove(handler);
+    }
+
+    /**
+     * Gets the listener's counters.
+     *
+     * @return The counters.
+     */
+    public Statistics getStatistics() {
+        return new Statistics(state.delivered.get(), state.dropped.get(), state.queue.size(), state.handlers.size());
+    }
+
+    /**
+     * Closes the listener. Queued events are discarded. Closing it again has no effect.
+     */
+    @Override
+    public void close() {
+        OPEN.remove(tracker);
+        tracker.clear();
+        state.close();
+    }
+
+    /**
+     * Gets the number of listeners that have been created and not closed.
+     *
+     * @return The open listener count.
+     */
+    public static int getOpenCount() {
+        return OPEN.size();
+    }
+
+    /**
+     * Prints where every open listener was created.
+     *
+     * @param out - The stream to print to.
+     */
+    public static void reportOpen(PrintStream out) {
+        List<Tracker> open = new ArrayList<Tracker>(OPEN);
+        out.println(open.size() + " open event listener(s).");
+        for (Tracker tracker : open) {
+            tracker.state.createdAt.printStackTrace(out);
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+            System.out.println("Registered devices: " + envoySystem.getRegisteredDeviceNames().size());
+
+            // Re-create the listener many times, as an application recovering from errors would.
+            int threadsBefore = Thread.activeCount();
+            for (int i = 0; i < 100; i++) {
+                ManagedEventListener listener = new ManagedEventListener(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+                listener.registerHandler(new IEnvoyEventHandler() {
+                    @Override
+                    public void handleEnvoyEvent(Event evt) {
+                        // Closed before any event arrives.
+                    }
+                });
+                listener.close();
+            }
+            System.out.println("Open listeners: " + getOpenCount() + ", threads: " + threadsBefore + " -> " + Thread.activeCount());
+
+            // The listener holds the anonymous handler; no other reference to it is needed.
+            ManagedEventListener listener = new ManagedEventListener(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+            listener.registerHandler(new IEnvoyEventHandler() {
+                @Override
+                public void handleEnvoyEvent(Event evt) {
+                    System.out.println("Event received: " + evt.getDeviceName() + " " + evt.getEventType());
+                }
+            });
+            System.out.println("Listening for events for 60 seconds...");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(60));
+            System.out.println(listener.getStatistics());
+            listener.close();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,390 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.iface.EBDSDispenseByDenomPrm;
+import com.arca.envoy.api.iface.EBDSGetNoteTableRsp;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * PriorityCommands.
+ *
+ * This example demonstrates scheduling device commands by priority. Status
+ * polls, sensor health checks and audit measurements share the device link
+ * with customer-facing commands such as dispenseByDenom() and
+ * dispenseByPosition(), and whichever caller reaches the device first wins;
+ * a dispense can wait behind a slow getAuditPerformanceMeasurements().
+ *
+ * Every device has one writer thread that takes commands from three queues:
+ *
+ *  - INTERACTIVE commands run first
+ *  - NORMAL commands run when no interactive command is waiting
+ *  - BACKGROUND commands run last, and not at all while a transaction is
+ *    open on the device, so a customer's transaction is never interleaved
+ *    with housekeeping
+ *
+ * To keep lower priorities from starving, a command that has waited longer
+ * than the starvation limit runs before anything queued after it, and a
+ * transaction held open longer than the limit stops deferring background
+ * commands. Commands of the same priority run in the order submitted.
+ *
+ * Any number of application threads may submit commands and open
+ * transactions without further locking. close() stops the writer threads
+ * and cancels the commands still queued.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered MEI SCR with USD$1 notes in the recycler.
+ *
+ * See README for compilation and running instructions.
+ */
+public class PriorityCommands {
+
+    private static final long DEFAULT_STARVATION_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * The priority classes, from highest to lowest.
+     */
+    public enum Priority {
+        /** Customer-facing commands. */
+        INTERACTIVE,
+        /** Application commands nobody is waiting on. */
+        NORMAL,
+        /** Polls, health checks and measurements; deferred during transactions. */
+        BACKGROUND
+    }
+
+    /**
+     * A transaction on one device; background commands wait until every open transaction is closed.
+     */
+    public final class Transaction implements AutoCloseable {
+        private final DeviceQueue queue;
+        private final long openedAt = System.nanoTime();
+        private boolean closed;
+
+        Transaction(DeviceQueue queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Closes the transaction. Closing it again has no effect.
+         */
+        @Override
+        public void close() {
+            synchronized (queue) {
+                if (!closed) {
+                    closed = true;
+                    queue.transactionClosed(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * A submitted command and when it was queued.
+     */
+    private static final class Entry {
+        private final FutureTask<?> task;
+        private final long queuedAt = System.nanoTime();
+
+        Entry(FutureTask<?> task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * The queues and writer thread of one device.
+     */
+    private final class DeviceQueue implements Runnable {
+        private final Map<Priority, Deque<Entry>> queues = new EnumMap<Priority, Deque<Entry>>(Priority.class);
+        private final Deque<Transaction> transactions = new ArrayDeque<Transaction>();
+        private final Thread writer;
+        private boolean closed;
+
+        DeviceQueue(String deviceName) {
+            for (Priority priority : Priority.values()) {
+                queues.put(priority, new ArrayDeque<Entry>());
+            }
+            writer = new Thread(this, "commands-" + deviceName);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        synchronized void add(Priority priority, FutureTask<?> task) {
+            if (closed) {
+                throw new IllegalStateException("The scheduler is closed.");
+            }
+            queues.get(priority).addLast(new Entry(task));
+            notifyAll();
+        }
+
+        synchronized void shutdown() {
+            closed = true;
+            for (Deque<Entry> queue : queues.values()) {
+                for (Entry entry : queue) {
+                    entry.task.cancel(false);
+                }
+                queue.clear();
+            }
+            writer.interrupt();
+        }
+
+        synchronized Transaction open() {
+            Transaction transaction = new Transaction(this);
+            transactions.addLast(transaction);
+            return transaction;
+        }
+
+        synchronized void transactionClosed(Transaction transaction) {
+            transactions.remove(transaction);
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    next().task.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits for the command to run next.
+         */
+        private synchronized Entry next() throws InterruptedException {
+            while (true) {
+                if (closed) {
+                    throw new InterruptedException();
+                }
+                long now = System.nanoTime();
+                boolean deferBackground = !transactions.isEmpty()
+                        && now - transactions.peekFirst().openedAt < starvationNanos;
+
+                // The oldest starved command goes first, whatever its priority.
+                Deque<Entry> starved = null;
+                for (Priority priority : Priority.values()) {
+                    Entry head = queues.get(priority).peekFirst();
+                    if (head == null || (priority == Priority.BACKGROUND && deferBackground)) {
+                        continue;
+                    }
+                    if (now - head.queuedAt >= starvationNanos
+                            && (starved == null || head.queuedAt < starved.peekFirst().queuedAt)) {
+                        starved = queues.get(priority);
+                    }
+                }
+                if (starved != null) {
+                    return starved.pollFirst();
+                }
+
+                for (Priority priority : Priority.values()) {
+                    if (priority == Priority.BACKGROUND && deferBackground) {
+                        break;
+                    }
+                    Entry head = queues.get(priority).pollFirst();
+                    if (head != null) {
+                        return head;
+                    }
+                }
+
+                // Wake up when the oldest transaction stops deferring background commands.
+                if (deferBackground && !queues.get(Priority.BACKGROUND).isEmpty()) {
+                    long waitNanos = transactions.peekFirst().openedAt + starvationNanos - now;
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+                } else {
+                    wait();
+                }
+            }
+        }
+    }
+
+    private final long starvationNanos;
+    private final ConcurrentHashMap<String, DeviceQueue> devices = new ConcurrentHashMap<String, DeviceQueue>();
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param starvationMs - The longest a command waits behind higher priorities, and the longest
+     *                       a transaction defers background commands, in milliseconds.
+     */
+    public PriorityCommands(long starvationMs) {
+        this.starvationNanos = TimeUnit.MILLISECONDS.toNanos(starvationMs);
+    }
+
+    /**
+     * Queues a command for a device.
+     *
+     * @param deviceName - The logical device name.
+     * @param priority - The command's priority.
+     * @param command - The device call.
+     * @param <T> - The type of the call result.
+     * @return The pending result.
+     */
+    public <T> Future<T> submit(String deviceName, Priority priority, Callable<T> command) {
+        FutureTask<T> task = new FutureTask<T>(command);
+        queue(deviceName).add(priority, task);
+        return task;
+    }
+
+    /**
+     * Runs a command on a device and waits for its result.
+     *
+     * @param deviceName - The logical device name.
+     * @param priority - The command's priority.
+     * @param command - The device call.
+     * @param <T> - The type of the call result.
+     * @return The call result.
+     * @throws RemoteException - If the Envoy service could not be reached, or the wait was interrupted.
+     */
+    public <T> T call(String deviceName, Priority priority, Callable<T> command) throws RemoteException {
+        try {
+            return submit(deviceName, priority, command).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e.getCause() instanceof RemoteException
+                    ? (RemoteException) e.getCause()
+                    : new RemoteException("Command failed.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for " + deviceName + ".", e);
+        }
+    }
+
+    /**
+     * Opens a transaction on a device. Background commands for the device are deferred until it is closed.
+     *
+     * @param deviceName - The logical device name.
+     * @return The transaction, to be closed when the customer's transaction ends.
+     */
+    public Transaction beginTransaction(String deviceName) {
+        return queue(deviceName).open();
+    }
+
+    /**
+     * Stops every device's writer thread. Queued commands are cancelled; a command already running completes.
+     */
+    public void close() {
+        synchronized (devices) {
+            for (DeviceQueue queue : devices.values()) {
+                queue.shutdown();
+            }
+        }
+    }
+
+    private DeviceQueue queue(String deviceName) {
+        DeviceQueue queue = devices.get(deviceName);
+        if (queue == null) {
+            synchronized (devices) {
+                queue = devices.get(deviceName);
+                if (queue == null) {
+                    queue = new DeviceQueue(deviceName);
+                    devices.put(deviceName, queue);
+                }
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            String scrName = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                    scrName = deviceName;
+                    break;
+                }
+            }
+
+            if (scrName == null) {
+                System.out.println("No registered SCR found.");
+                System.exit(1);
+            }
+
+            final ISCRDevice scr = (ISCRDevice) Naming.lookup(envoySystem.getDevicePath(scrName));
+            PriorityCommands commands = new PriorityCommands(DEFAULT_STARVATION_MS);
+
+            Callable<EBDSGetNoteTableRsp> poll = new Callable<EBDSGetNoteTableRsp>() {
+                @Override
+                public EBDSGetNoteTableRsp call() throws RemoteException {
+                    return scr.getNoteTable();
+                }
+            };
+
+            // A customer's transaction starts; no background command runs until it closes.
+            Transaction transaction = commands.beginTransaction(scrName);
+            try {
+                // Queue a burst of background polls, as a monitoring agent would.
+                for (int i = 0; i < 10; i++) {
+                    commands.submit(scrName, Priority.BACKGROUND, poll);
+                }
+
+                // The dispense runs ahead of the queued polls.
+                long start = System.nanoTime();
+                commands.call(scrName, Priority.INTERACTIVE, new Callable<Void>() {
+                    @Override
+                    public Void call() throws RemoteException {
+                        scr.dispenseByDenom(new EBDSDispenseByDenomPrm(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1), 1));
+                        return null;
+                    }
+                });
+                System.out.println("Dispensed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+            } finally {
+                transaction.close();
+            }
+
+            Future<EBDSGetNoteTableRsp> last = commands.submit(scrName, Priority.BACKGROUND, poll);
+            System.out.println("Polls finished; note table has " + last.get().getNoteTable().size() + " entries.");
+            commands.close();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
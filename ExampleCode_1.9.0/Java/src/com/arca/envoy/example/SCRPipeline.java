@@ -0,0 +1,368 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.EBDSDispenseByDenomPrm;
+import com.arca.envoy.api.iface.EBDSExtendedNoteInhibitsPrm;
+import com.arca.envoy.api.iface.EBDSRecyclerNoteEnablesPrm;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.EventEnum;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.iface.NoteEventData;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * SCRPipeline.
+ *
+ * This example demonstrates a pipelined escrow-to-payout transaction on the
+ * MEI SCR bill recycler. The SCR example performs each step only after the
+ * previous remote call and event have completed. Here the transaction is an
+ * event-driven state machine:
+ *
+ *  - On ESCROWED, the note is checked against the cached recycler note
+ *    enables, a local lookup, and recycleBill() is issued at once
+ *  - On STACKED, the dispense command for the note is sent at once
+ *  - NOTE_PRESENTED and NOTE_RETRIEVED complete the transaction
+ *
+ * The saving comes from issuing each command as soon as its event arrives,
+ * rather than from doing other work while the mechanism moves; there is no
+ * other work to overlap. Acceptance is restricted to the recycled
+ * denomination, as in the SCR example, so other notes are rejected before
+ * they reach escrow. Should a note that cannot be recycled be escrowed all
+ * the same, the Envoy API has no command to return it, so a mechanical reset
+ * clears the escrow by stacking the note in the cash box; the next
+ * transaction can then begin.
+ *
+ * Only events from the pipeline's own SCR are handled, and events that
+ * arrive after a transaction has completed or failed are ignored. The time
+ * at which each phase ends is recorded by the thread that observes it, and
+ * the phase durations are worked out from those times when the transaction
+ * completes, since the command thread and the event thread run unordered.
+ * The median escrow-to-payout time is reported after the demonstration.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service is necessary to run this example.
+ *  - A registered MEI SCR on an RS-232 port, via EnvoyHome, is necessary to run this example.
+ *  - A USD$1 bill is necessary to run this example.
+ *
+ * See README for compilation and running instructions.
+ */
+public class SCRPipeline implements IEnvoyEventHandler {
+
+    private static final int TRANSACTIONS = 3;
+
+    /**
+     * The phases of an escrow-to-payout transaction, in order.
+     */
+    public enum Phase {
+        /** From ESCROWED until recycleBill() returns. */
+        RECYCLE,
+        /** From recycleBill() returning until STACKED. */
+        STACK,
+        /** From STACKED until dispenseByDenom() returns. */
+        DISPENSE,
+        /** From dispenseByDenom() returning until NOTE_PRESENTED. */
+        PRESENT,
+        /** From NOTE_PRESENTED until NOTE_RETRIEVED. */
+        RETRIEVE
+    }
+
+    /**
+     * The state of one transaction, written by the event thread and the command thread.
+     */
+    private static final class Transaction {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final Map<Phase, Long> phaseEnds = Collections.synchronizedMap(new EnumMap<Phase, Long>(Phase.class));
+        private volatile Denomination note;
+        private volatile long escrowedAt;
+        private volatile boolean finished;
+    }
+
+    private final String deviceName;
+    private final ISCRDevice scr;
+    private final Set<Denomination> recyclerEnables;
+
+    /** Issues device commands in order, off the event callback thread. */
+    private final ExecutorService commands = Executors.newSingleThreadExecutor();
+
+    private final List<Long> escrowToPayoutNanos = Collections.synchronizedList(new ArrayList<Long>());
+
+    private volatile Transaction current;
+
+    /**
+     * Creates a pipelined transaction engine for an SCR.
+     *
+     * @param deviceName - The SCR's logical device name; events from other devices are ignored.
+     * @param scr - The SCR device.
+     * @param recyclerEnables - The denominations currently enabled for recycling.
+     */
+    public SCRPipeline(String deviceName, ISCRDevice scr, Set<Denomination> recyclerEnables) {
+        this.deviceName = deviceName;
+        this.scr = scr;
+        this.recyclerEnables = recyclerEnables;
+    }
+
+    /**
+     * Arms the engine for a single transaction.
+     *
+     * @return A latch released when the transaction completes.
+     */
+    public CountDownLatch begin() {
+        Transaction transaction = new Transaction();
+        current = transaction;
+        return transaction.completed;
+    }
+
+    @Override
+    public void handleEnvoyEvent(Event event) {
+        Transaction transaction = current;
+        if (event == null || transaction == null || transaction.finished
+                || !deviceName.equals(event.getDeviceName())) {
+            return;
+        }
+
+        // Only ESCROWED starts a transaction.
+        if (transaction.note == null && event.getEventType() != EventEnum.ESCROWED) {
+            return;
+        }
+
+        switch (event.getEventType()) {
+            case ESCROWED:
+                if (transaction.note == null) {
+                    escrowed(transaction, ((NoteEventData) event.getEventData()).getNote().getDenoms().get(0));
+                }
+                break;
+
+            case STACKED:
+                endPhase(transaction, Phase.STACK);
+                stacked(transaction);
+                break;
+
+            case NOTE_PRESENTED:
+                endPhase(transaction, Phase.PRESENT);
+                escrowToPayoutNanos.add(System.nanoTime() - transaction.escrowedAt);
+                System.out.println("Bill Presented to User: " + transaction.note);
+                break;
+
+            case NOTE_RETRIEVED:
+                endPhase(transaction, Phase.RETRIEVE);
+                transaction.finished = true;
+                report(transaction);
+                transaction.completed.countDown();
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void escrowed(final Transaction transaction, final Denomination escrowed) {
+        transaction.escrowedAt = System.nanoTime();
+        transaction.note = escrowed;
+
+        // Check before the bill is moved; a note that cannot be paid out must not be recycled.
+        if (!recyclerEnables.contains(escrowed)) {
+            clearEscrow(transaction, new IllegalStateException("Cannot dispense that denomination: " + escrowed));
+            return;
+        }
+
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scr.recycleBill();
+                    endPhase(transaction, Phase.RECYCLE);
+                } catch (RemoteException e) {
+                    fail(transaction, e);
+                }
+            }
+        });
+    }
+
+    private void stacked(final Transaction transaction) {
+        final EBDSDispenseByDenomPrm dispense = new EBDSDispenseByDenomPrm(transaction.note, 1);
+
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (transaction.finished) {
+                    return;
+                }
+                try {
+                    scr.dispenseByDenom(dispense);
+                    endPhase(transaction, Phase.DISPENSE);
+                } catch (RemoteException e) {
+                    fail(transaction, e);
+                }
+            }
+        });
+    }
+
+    private void clearEscrow(final Transaction transaction, final Throwable cause) {
+        // Ignore the STACKED event the reset raises; it does not belong to a recycle.
+        transaction.finished = true;
+
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // A mechanical reset stacks the escrowed note in the cash box.
+                    scr.mechaReset();
+                } catch (RemoteException e) {
+                    System.out.println("Unable to clear the escrow: " + e.getMessage());
+                }
+                fail(transaction, cause);
+            }
+        });
+    }
+
+    private static void endPhase(Transaction transaction, Phase phase) {
+        transaction.phaseEnds.put(phase, System.nanoTime());
+    }
+
+    private void fail(Transaction transaction, Throwable cause) {
+        transaction.finished = true;
+        System.out.println("Transaction failed: " + cause.getMessage());
+        transaction.completed.countDown();
+    }
+
+    private static void report(Transaction transaction) {
+        StringBuilder summary = new StringBuilder("Transaction phases:");
+        long start = transaction.escrowedAt;
+        for (Phase phase : Phase.values()) {
+            Long end = transaction.phaseEnds.get(phase);
+            if (end == null) {
+                continue;
+            }
+            // A phase that ended before the previous one, such as STACKED before recycleBill() returned, took no time.
+            long duration = Math.max(0, end - start);
+            summary.append(String.format("\n\t%-8s %6d ms", phase, TimeUnit.NANOSECONDS.toMillis(duration)));
+            start = Math.max(start, end);
+        }
+        System.out.println(summary);
+    }
+
+    /**
+     * Gets the median time from ESCROWED to NOTE_PRESENTED over the completed transactions.
+     *
+     * @return The median, in milliseconds, or -1 if no transaction has paid out.
+     */
+    public long getMedianEscrowToPayoutMs() {
+        List<Long> sorted;
+        synchronized (escrowToPayoutNanos) {
+            sorted = new ArrayList<Long>(escrowToPayoutNanos);
+        }
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        Collections.sort(sorted);
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() / 2));
+    }
+
+    /**
+     * Stops the command thread.
+     */
+    public void shutdown() {
+        commands.shutdownNow();
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            // Locate the first registered MEI SCR bill recycler.
+            String scrName = null;
+            String devicePath = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                    scrName = deviceName;
+                    devicePath = envoySystem.getDevicePath(deviceName);
+                    break;
+                }
+            }
+
+            if (devicePath == null) {
+                System.out.println("Could not find a registered SCR ... Exiting");
+                System.exit(1);
+            }
+
+            ISCRDevice scr = (ISCRDevice) Naming.lookup(devicePath);
+            scr.mechaReset();
+
+            // Restrict acceptance to just USD$1.
+            ArrayList<Denomination> inhibited = new ArrayList<Denomination>(0);
+            inhibited.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 2));
+            inhibited.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 5));
+            inhibited.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 10));
+            inhibited.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 20));
+            inhibited.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 50));
+            inhibited.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 100));
+            scr.setNoteInhibits(new EBDSExtendedNoteInhibitsPrm(inhibited));
+
+            // Set the USD$1 to be recycled, and cache the enables for local validation.
+            ArrayList<Denomination> recycled = new ArrayList<Denomination>(0);
+            recycled.add(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1));
+            scr.setRecyclerNoteEnables(new EBDSRecyclerNoteEnablesPrm(recycled));
+
+            final SCRPipeline pipeline = new SCRPipeline(scrName, scr, new HashSet<Denomination>(recycled));
+            EnvoyEventListener eel = new EnvoyEventListener();
+            eel.registerHandler(pipeline);
+
+            scr.enableDevice(true);
+            for (int i = 0; i < TRANSACTIONS; i++) {
+                CountDownLatch completed = pipeline.begin();
+                System.out.println("Please insert a USD$1 bill, then take it when it is presented.");
+                completed.await();
+            }
+            scr.enableDevice(false);
+
+            System.out.println("Median escrow-to-payout: " + pipeline.getMedianEscrowToPayoutMs() + " ms");
+            pipeline.shutdown();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // Demonstration complete.
+        System.exit(0);
+    }
+}
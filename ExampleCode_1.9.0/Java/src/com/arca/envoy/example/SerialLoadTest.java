@@ -0,0 +1,282 @@
+package com.arca.envoy.example;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.information.DeviceInformation;
+import com.arca.envoy.api.information.RS232DeviceInformation;
+
+/**
+ * SerialLoadTest.
+ *
+ * This example demonstrates measuring how the Envoy service handles many
+ * RS-232 devices at once. The service owns the serial ports, so how well it
+ * scales with the number of ports can only be seen from outside: by keeping
+ * every port busy at the same time and watching throughput and latency.
+ *
+ * The test:
+ *
+ *  - Finds every registered device attached over RS-232 (the SCR, F53, F400
+ *    and RCD are commonly attached this way, directly or through USB-serial
+ *    adapters)
+ *  - Chooses a read-only status query for each device from a short list
+ *  - Keeps one query outstanding on every port for the test duration, like
+ *    a busy terminal would
+ *  - Records each latency in a fixed set of histogram buckets, so the
+ *    measurement itself allocates nothing per query
+ *  - Prints the throughput and median and 99th percentile latency of every
+ *    port, and of all ports together
+ *  - Counts device errors, which still took a round trip on the port, with
+ *    the latency samples, but counts transport failures (a RemoteException,
+ *    such as a lost connection) separately and backs off before retrying,
+ *    so a dead connection neither skews the latency nor spins the client
+ *
+ * Running it with one port and then with dozens shows whether latency stays
+ * flat as ports are added, or grows because the ports share a bottleneck.
+ *
+ * Usage:
+ *
+ *   SerialLoadTest [seconds]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - One or more devices registered on RS-232 ports.
+ *
+ * See README for compilation and running instructions.
+ */
+public class SerialLoadTest {
+
+    private static final int DEFAULT_SECONDS = 30;
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    /** Read-only queries to try, in order of preference. */
+    private static final String[] QUERIES = {"getStatus", "getSensorHealth", "getNoteTable", "getCurrencyCode"};
+
+    /**
+     * A latency histogram with buckets a quarter of a power of two wide, from 1 microsecond to about 70 seconds.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 26 * 4;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(nanos / 1000));
+            total.incrementAndGet();
+        }
+
+        void addTo(Histogram sum) {
+            for (int i = 0; i < BUCKETS; i++) {
+                sum.counts.addAndGet(i, counts.get(i));
+            }
+            sum.total.addAndGet(total.get());
+        }
+
+        long count() {
+            return total.get();
+        }
+
+        /**
+         * Gets a percentile.
+         *
+         * @param percentile - The percentile, from 0 to 100.
+         * @return The upper bound of the bucket holding the percentile, in microseconds.
+         */
+        long percentileMicros(double percentile) {
+            long rank = (long) Math.ceil(total.get() * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < 1) {
+                return 0;
+            }
+            int log2 = 63 - Long.numberOfLeadingZeros(micros);
+            // Two bits below the leading one select the quarter.
+            int quarter = log2 >= 2 ? (int) (micros >>> (log2 - 2)) & 3 : (int) (micros << (2 - log2)) & 3;
+            return Math.min(log2 * 4 + quarter, BUCKETS - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            int log2 = bucket / 4;
+            int quarter = bucket % 4;
+            return (1L << log2) + ((quarter + 1) * (1L << log2) / 4);
+        }
+    }
+
+    /**
+     * One port under test.
+     */
+    static final class Port {
+        final String deviceName;
+        final Remote device;
+        final Method query;
+        final Histogram latency = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong transportFailures = new AtomicLong();
+
+        Port(String deviceName, Remote device, Method query) {
+            this.deviceName = deviceName;
+            this.device = device;
+            this.query = query;
+        }
+
+        void run(long deadline) {
+            long backoffMs = MIN_BACKOFF_MS;
+            while (System.nanoTime() - deadline < 0 && !Thread.currentThread().isInterrupted()) {
+                long start = System.nanoTime();
+                try {
+                    query.invoke(device);
+                    latency.record(System.nanoTime() - start);
+                    backoffMs = MIN_BACKOFF_MS;
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof RemoteException) {
+                        // The query never reached the port; wait before trying the connection again.
+                        transportFailures.incrementAndGet();
+                        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        try {
+                            Thread.sleep(Math.max(0, Math.min(backoffMs, remainingMs)));
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                        backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                    } else {
+                        // A device error still took a round trip on the port.
+                        latency.record(System.nanoTime() - start);
+                        errors.incrementAndGet();
+                        backoffMs = MIN_BACKOFF_MS;
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private static Method findQuery(Remote device) {
+        for (String name : QUERIES) {
+            for (Class<?> iface : device.getClass().getInterfaces()) {
+                try {
+                    return iface.getMethod(name);
+                } catch (NoSuchMethodException e) {
+                    // Try the next interface.
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void print(String name, Histogram latency, long errors, long transportFailures, int seconds) {
+        System.out.println(String.format("%-20s %8.1f/s  p50 %8d us  p99 %8d us  errors %d  transport failures %d",
+                name, (double) latency.count() / seconds,
+                latency.percentileMicros(50), latency.percentileMicros(99), errors, transportFailures));
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the test duration in seconds.
+     */
+    public static void main(String[] args) {
+        int seconds = DEFAULT_SECONDS;
+        if (args.length > 0) {
+            try {
+                seconds = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                seconds = 0;
+            }
+            if (seconds <= 0) {
+                System.out.println("Usage: SerialLoadTest [seconds], where seconds is a whole number greater than 0.");
+                System.exit(1);
+            }
+        }
+
+        try {
+            // Get the Envoy System Object.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            List<Port> ports = new ArrayList<Port>();
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+                if (!(deviceInformation instanceof RS232DeviceInformation)) {
+                    continue;
+                }
+
+                Remote device = Naming.lookup(envoySystem.getDevicePath(deviceName));
+                Method query = findQuery(device);
+                if (query == null) {
+                    System.out.println("Skipping " + deviceName + ": no status query available.");
+                    continue;
+                }
+                System.out.println("Testing " + deviceName + " (" + deviceInformation.getDeviceType() + ") with " + query.getName() + "().");
+                ports.add(new Port(deviceName, device, query));
+            }
+
+            if (ports.isEmpty()) {
+                System.out.println("No RS-232 devices registered.");
+                System.exit(1);
+            }
+
+            // RMI calls block, so each outstanding query needs its own client thread.
+            ExecutorService load = Executors.newFixedThreadPool(ports.size());
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            for (final Port port : ports) {
+                load.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        port.run(deadline);
+                    }
+                });
+            }
+            load.shutdown();
+            load.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+
+            Histogram all = new Histogram();
+            long allErrors = 0;
+            long allTransportFailures = 0;
+            for (Port port : ports) {
+                print(port.deviceName, port.latency, port.errors.get(), port.transportFailures.get(), seconds);
+                port.latency.addTo(all);
+                allErrors += port.errors.get();
+                allTransportFailures += port.transportFailures.get();
+            }
+            print("All " + ports.size() + " ports", all, allErrors, allTransportFailures, seconds);
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,361 @@
+package com.arca.envoy.example;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.Denomination;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.APICommandException;
+import com.arca.envoy.api.iface.EBDSFloatByDenomPrm;
+import com.arca.envoy.api.iface.EBDSRecyclerNoteEnablesPrm;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.iface.NoteEventData;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * SpoolRebalancer.
+ *
+ * This example demonstrates idle-time spool rebalancing for the MEI SCR bill
+ * recycler. Spools fill with recycle-enabled notes until CASSETTE_FULL stops
+ * acceptance in the middle of a transaction. The rebalancer keeps an estimate
+ * of each spool level from events:
+ *
+ *  - STACKED of a recycle-enabled denomination adds a note
+ *  - NOTE_PRESENTED removes a note (the SCR presents dispensed notes one at a time)
+ *  - FLOAT_COMPLETE removes the notes of the float the rebalancer requested
+ *  - CASSETTE_FULL marks the spool of the last escrowed note as full
+ *
+ * A STACKED that follows an ESCROWED is a customer's note and is counted even
+ * while a float is running. A float whose FLOAT_COMPLETE has not arrived by
+ * the float deadline, for example because the event was lost across a
+ * reconnect, is assumed to have completed, since the SCR accepted the
+ * command; the SCR offers no query of its spool levels, so the estimate is
+ * corrected later by CASSETTE_FULL or a rejected float.
+ *
+ * When the SCR has been idle for a while, spools above their target level are
+ * floated down to the cash box in small batches. ESCROWED, DISPENSE_STARTED
+ * and beginInteraction() mark the start of a customer interaction; no new
+ * batch is started until STACKED, DISPENSE_COMPLETE, RETURNED or
+ * endInteraction() is followed by the idle delay, so a customer waits behind
+ * at most one short batch.
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service is necessary to run this example.
+ *  - A registered MEI SCR on an RS-232 port, via EnvoyHome, is necessary to run this example.
+ *
+ * See README for compilation and running instructions.
+ */
+public class SpoolRebalancer implements IEnvoyEventHandler {
+
+    private static final long CHECK_INTERVAL_MS = 1000;
+    private static final long FLOAT_TIMEOUT_MS = 30000;
+
+    private final ISCRDevice scr;
+    private final long idleDelayMs;
+    private final int batchSize;
+
+    /** Estimated notes on the spools, by denomination. */
+    private final Map<Denomination, Integer> levels = new ConcurrentHashMap<Denomination, Integer>();
+    /** Configured target levels, by recycle-enabled denomination. */
+    private final Map<Denomination, Integer> targets = new ConcurrentHashMap<Denomination, Integer>();
+    /** Level assumed when CASSETTE_FULL is reported, by denomination. */
+    private final Map<Denomination, Integer> capacities = new ConcurrentHashMap<Denomination, Integer>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile boolean interacting;
+    private volatile long lastActivity = System.nanoTime();
+    private volatile Denomination lastEscrowed;
+    private volatile boolean escrowPending;
+    private volatile Denomination floating;
+    private volatile int floatingCount;
+    private volatile long floatDeadline;
+
+    /**
+     * Creates a spool rebalancer for an SCR.
+     *
+     * @param scr - The SCR device.
+     * @param idleDelayMs - How long the SCR must be idle before notes are floated, in milliseconds.
+     * @param batchSize - The largest number of notes floated by one command.
+     */
+    public SpoolRebalancer(ISCRDevice scr, long idleDelayMs, int batchSize) {
+        this.scr = scr;
+        this.idleDelayMs = idleDelayMs;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Configures a recycle-enabled denomination.
+     *
+     * @param denomination - The recycle-enabled denomination.
+     * @param target - The level idle floats reduce the spool to.
+     * @param capacity - The spool capacity, assumed when CASSETTE_FULL is reported.
+     * @param current - The current spool level, if known; otherwise zero.
+     */
+    public void configure(Denomination denomination, int target, int capacity, int current) {
+        targets.put(denomination, target);
+        capacities.put(denomination, capacity);
+        setLevel(denomination, current);
+    }
+
+    /**
+     * Starts checking for idle periods.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                rebalance();
+            }
+        }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops rebalancing. A float already sent to the SCR runs to completion.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Marks the start of a customer interaction that does not begin with an SCR event,
+     * such as a payout being keyed in at the register.
+     */
+    public void beginInteraction() {
+        interacting = true;
+    }
+
+    /**
+     * Marks the end of a customer interaction started with beginInteraction().
+     */
+    public void endInteraction() {
+        interacting = false;
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Gets the estimated number of notes on the spools for a denomination.
+     *
+     * @param denomination - The denomination.
+     * @return The estimated spool level.
+     */
+    public int getLevel(Denomination denomination) {
+        Integer level = levels.get(denomination);
+        return level == null ? 0 : level;
+    }
+
+    @Override
+    public void handleEnvoyEvent(Event event) {
+        if (event == null) {
+            return;
+        }
+
+        switch (event.getEventType()) {
+            case ESCROWED:
+                lastEscrowed = noteOf(event);
+                escrowPending = true;
+                interacting = true;
+                break;
+
+            case DISPENSE_STARTED:
+                interacting = true;
+                break;
+
+            case STACKED:
+                // Notes moved to the cash box by a float are accounted for on FLOAT_COMPLETE;
+                // a note that was escrowed first is a customer's note.
+                if (escrowPending || floating == null) {
+                    adjust(noteOf(event), 1);
+                }
+                escrowPending = false;
+                interacting = false;
+                lastActivity = System.nanoTime();
+                break;
+
+            case NOTE_PRESENTED:
+                adjust(noteOf(event), -1);
+                break;
+
+            case RETURNED:
+                escrowPending = false;
+                interacting = false;
+                lastActivity = System.nanoTime();
+                break;
+
+            case DISPENSE_COMPLETE:
+                interacting = false;
+                lastActivity = System.nanoTime();
+                break;
+
+            case CASSETTE_FULL:
+                Denomination full = lastEscrowed;
+                if (full != null && capacities.containsKey(full)) {
+                    setLevel(full, capacities.get(full));
+                }
+                break;
+
+            case FLOAT_COMPLETE:
+                floatCompleted();
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void adjust(Denomination denomination, int delta) {
+        // Only recycle-enabled denominations are stored on the spools.
+        if (denomination == null || !targets.containsKey(denomination)) {
+            return;
+        }
+
+        synchronized (levels) {
+            levels.put(denomination, Math.max(0, getLevel(denomination) + delta));
+        }
+    }
+
+    private void setLevel(Denomination denomination, int level) {
+        synchronized (levels) {
+            levels.put(denomination, level);
+        }
+    }
+
+    private synchronized void floatCompleted() {
+        Denomination floated = floating;
+        if (floated != null) {
+            adjust(floated, -floatingCount);
+            floating = null;
+        }
+    }
+
+    private void rebalance() {
+        if (floating != null) {
+            if (System.nanoTime() - floatDeadline < 0) {
+                return;
+            }
+            System.out.println("No FLOAT_COMPLETE received for the float of " + floating + "; assuming it completed.");
+            floatCompleted();
+        }
+
+        if (interacting || System.nanoTime() - lastActivity < TimeUnit.MILLISECONDS.toNanos(idleDelayMs)) {
+            return;
+        }
+
+        for (Map.Entry<Denomination, Integer> target : targets.entrySet()) {
+            int excess = getLevel(target.getKey()) - target.getValue();
+            if (excess <= 0) {
+                continue;
+            }
+
+            // Check again right before the command; a customer may have just arrived.
+            if (interacting) {
+                return;
+            }
+
+            int count = Math.min(excess, batchSize);
+            floatingCount = count;
+            floatDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLOAT_TIMEOUT_MS);
+            floating = target.getKey();
+            try {
+                System.out.println("Floating " + count + " x " + target.getKey() + " to the cash box.");
+                scr.floatByDenom(new EBDSFloatByDenomPrm(target.getKey(), count));
+            } catch (RemoteException e) {
+                floating = null;
+                e.printStackTrace();
+            } catch (APICommandException e) {
+                // The estimate was too high; trust the device and resynchronize at the target.
+                floating = null;
+                setLevel(target.getKey(), target.getValue());
+                System.out.println("Float rejected: " + e.getEnvoyError());
+            }
+            return;
+        }
+    }
+
+    private static Denomination noteOf(Event event) {
+        if (!(event.getEventData() instanceof NoteEventData)) {
+            return null;
+        }
+        return ((NoteEventData) event.getEventData()).getNote().getDenoms().get(0);
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        try {
+            // Connect to the Envoy service.
+            IEnvoySystem envoySystem = (IEnvoySystem) Naming.lookup("//localhost/envoy/system");
+
+            // Locate the first registered MEI SCR bill recycler.
+            String devicePath = null;
+            for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                    devicePath = envoySystem.getDevicePath(deviceName);
+                    break;
+                }
+            }
+
+            if (devicePath == null) {
+                System.out.println("Could not find a registered SCR ... Exiting");
+                System.exit(1);
+            }
+
+            ISCRDevice scr = (ISCRDevice) Naming.lookup(devicePath);
+
+            // Recycle USD$1 and USD$20.
+            Denomination one = CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1);
+            Denomination twenty = CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 20);
+            ArrayList<Denomination> recycled = new ArrayList<Denomination>(0);
+            recycled.add(one);
+            recycled.add(twenty);
+            scr.setRecyclerNoteEnables(new EBDSRecyclerNoteEnablesPrm(recycled));
+
+            // Keep 30 of each on the spools after ten idle seconds, floating at most 5 notes at a time.
+            SpoolRebalancer rebalancer = new SpoolRebalancer(scr, 10000, 5);
+            rebalancer.configure(one, 30, 60, 0);
+            rebalancer.configure(twenty, 30, 60, 0);
+
+            EnvoyEventListener eel = new EnvoyEventListener();
+            eel.registerHandler(rebalancer);
+            rebalancer.start();
+
+            scr.enableDevice(true);
+            System.out.println("Insert USD$1 or USD$20 bills; idle spools are floated down to 30 notes.");
+            Thread.currentThread().join();
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,540 @@
+package com.arca.envoy.example;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.arca.envoy.api.currency.CurCodeEnum;
+import com.arca.envoy.api.currency.MoneyTypeEnum;
+import com.arca.envoy.api.enumtypes.DeviceType;
+import com.arca.envoy.api.eventlistener.EnvoyEventListener;
+import com.arca.envoy.api.iface.EBDSDispenseByDenomPrm;
+import com.arca.envoy.api.iface.Event;
+import com.arca.envoy.api.iface.EventEnum;
+import com.arca.envoy.api.iface.IEnvoyEventHandler;
+import com.arca.envoy.api.iface.IEnvoySystem;
+import com.arca.envoy.api.iface.ISCRDevice;
+import com.arca.envoy.api.information.DeviceInformation;
+
+/**
+ * TransactionTracing.
+ *
+ * This example demonstrates tracing logical transactions, such as an SCR
+ * escrow, recycle and dispense or an F400 payout, to find where a slow
+ * transaction spent its time. A trace is a tree of timed spans:
+ *
+ *  - The transaction itself, opened and ended by the application
+ *  - Every Naming.lookup() made through the tracer
+ *  - Every call on a traced device or system stub; a call's span covers RMI
+ *    marshalling, the Envoy service and the device command
+ *  - Device spans, opened by the application around work that continues on
+ *    the device after a call returns, such as an SCR dispense, which
+ *    completes with DISPENSE_COMPLETE after dispenseByDenom() has returned
+ *  - Device events, such as DISPENSE_STARTED, NOTE_PRESENTED and
+ *    DISPENSE_COMPLETE, recorded on the innermost open call or device span
+ *    of their device, which splits the time between the command and the
+ *    mechanism; an event that arrives when no span of its device is open is
+ *    ignored, rather than attached to a span that has already ended
+ *
+ * The Envoy service does not accept trace context, so spans stop at the
+ * service boundary; device events are matched to a transaction by device
+ * name, and only one transaction per device is traced at a time.
+ *
+ * Spans are kept in memory until the transaction ends, and the whole trace is
+ * then either dropped or handed to a background thread that appends it to a
+ * file, one span per line in JSON. A trace is kept if it was sampled at its
+ * start, took longer than the slow threshold, or failed, so slow and failed
+ * transactions are always available while the file stays small.
+ *
+ * Usage:
+ *
+ *   TransactionTracing [trace-file] [sample-rate] [slow-ms]
+ *
+ * Before running this example, you will need:
+ *  - A running Envoy service instance.
+ *  - A registered MEI SCR with USD$1 notes in the recycler.
+ *
+ * See README for compilation and running instructions.
+ */
+public class TransactionTracing {
+
+    private static final double DEFAULT_SAMPLE_RATE = 0.01;
+    private static final long DEFAULT_SLOW_MS = 2000;
+    private static final long DISPENSE_TIMEOUT_S = 60;
+
+    /**
+     * A timed operation within a trace.
+     */
+    public final class Span {
+        private final Trace trace;
+        private final long spanId;
+        private final long parentId;
+        private final String name;
+        private final String deviceName;
+        private final Span previousForDevice;
+        private final long start = System.nanoTime();
+        private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+        private final List<String> events = new ArrayList<String>();
+        private long end;
+
+        Span(Trace trace, long parentId, String name, String deviceName, Span previousForDevice) {
+            this.trace = trace;
+            this.spanId = trace.nextSpanId++;
+            this.parentId = parentId;
+            this.name = name;
+            this.deviceName = deviceName;
+            this.previousForDevice = previousForDevice;
+        }
+
+        /**
+         * Sets an attribute of the span.
+         *
+         * @param key - The attribute name.
+         * @param value - The attribute value.
+         * @return This span.
+         */
+        public Span setAttribute(String key, Object value) {
+            synchronized (trace) {
+                attributes.put(key, String.valueOf(value));
+            }
+            return this;
+        }
+
+        /**
+         * Marks the span as failed.
+         *
+         * @param error - The error.
+         * @return This span.
+         */
+        public Span setError(Throwable error) {
+            synchronized (trace) {
+                trace.failed = true;
+            }
+            return setAttribute("error", error.getClass().getSimpleName() + ": " + error.getMessage());
+        }
+
+        /**
+         * Ends the span, and its trace if this is the transaction's span.
+         */
+        public void end() {
+            boolean finished;
+            synchronized (trace) {
+                if (end != 0) {
+                    return;
+                }
+                end = System.nanoTime();
+                finished = this == trace.root;
+            }
+
+            Deque<Span> stack = current.get();
+            stack.remove(this);
+            if (deviceName != null) {
+                // Later events of the device belong to the enclosing device span, if it is still open.
+                Span previous = previousForDevice;
+                if (previous != null && previous.trace == trace && previous.isOpen()) {
+                    callsByDevice.replace(deviceName, this, previous);
+                } else {
+                    callsByDevice.remove(deviceName, this);
+                }
+            }
+            if (finished) {
+                finish(trace);
+            }
+        }
+
+        boolean isOpen() {
+            synchronized (trace) {
+                return end == 0;
+            }
+        }
+
+        void addEvent(String event) {
+            synchronized (trace) {
+                // An event that arrives after the span ended did not happen within it.
+                if (end == 0) {
+                    events.add(event + "@" + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - trace.root.start));
+                }
+            }
+        }
+    }
+
+    /**
+     * The spans of one transaction.
+     */
+    private static final class Trace {
+        private final long traceId;
+        private final boolean sampled;
+        private final List<Span> spans = new ArrayList<Span>();
+        private final List<String> devices = new ArrayList<String>();
+        private Span root;
+        private long nextSpanId = 1;
+        private boolean failed;
+
+        Trace(long traceId, boolean sampled) {
+            this.traceId = traceId;
+            this.sampled = sampled;
+        }
+    }
+
+    private final double sampleRate;
+    private final long slowNanos;
+    private final Writer out;
+    private final ExecutorService exporter = Executors.newSingleThreadExecutor();
+    private final Random ids = new Random();
+    private final ConcurrentHashMap<String, Span> callsByDevice = new ConcurrentHashMap<String, Span>();
+    private final ThreadLocal<Deque<Span>> current = new ThreadLocal<Deque<Span>>() {
+        @Override
+        protected Deque<Span> initialValue() {
+            return new ArrayDeque<Span>();
+        }
+    };
+
+    /**
+     * Creates a tracer.
+     *
+     * @param traceFile - The file completed traces are appended to.
+     * @param sampleRate - The fraction of transactions traced regardless of outcome, from 0 to 1.
+     * @param slowMs - The duration above which a transaction is always traced, in milliseconds.
+     * @throws IOException - If the trace file could not be opened.
+     */
+    public TransactionTracing(File traceFile, double sampleRate, long slowMs) throws IOException {
+        this.sampleRate = sampleRate;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMs);
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(traceFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Starts a transaction on the calling thread.
+     *
+     * @param name - The transaction name, such as "scr.payout".
+     * @return The transaction's span, to be ended when the transaction is finished.
+     */
+    public Span startTransaction(String name) {
+        Trace trace = new Trace(ids.nextLong(), ThreadLocalRandom.current().nextDouble() < sampleRate);
+        Span root = new Span(trace, 0, name, null, null);
+        trace.root = root;
+        trace.spans.add(root);
+        current.get().push(root);
+        return root;
+    }
+
+    /**
+     * Starts a span within the calling thread's transaction.
+     *
+     * @param name - The span name.
+     * @return The span, to be ended when the operation is finished, or null outside a transaction.
+     */
+    public Span startSpan(String name) {
+        return startSpan(name, null);
+    }
+
+    /**
+     * Starts a span within the calling thread's transaction that records the events of a device.
+     * <p>
+     * Use it around work that continues on the device after a call returns, such as waiting for
+     * DISPENSE_COMPLETE. Events go to the innermost open span of the device, so the events of a call
+     * made inside this span are recorded on the call.
+     *
+     * @param name - The span name.
+     * @param deviceName - The logical device name whose events are recorded.
+     * @return The span, to be ended when the device has finished, or null outside a transaction.
+     */
+    public Span startDeviceSpan(String name, String deviceName) {
+        return startSpan(name, deviceName);
+    }
+
+    private Span startSpan(String name, String deviceName) {
+        Span parent = current.get().peek();
+        if (parent == null) {
+            return null;
+        }
+
+        Span span;
+        synchronized (parent.trace) {
+            Span previous = deviceName == null ? null : callsByDevice.get(deviceName);
+            span = new Span(parent.trace, parent.spanId, name, deviceName, previous);
+            parent.trace.spans.add(span);
+            if (deviceName != null) {
+                parent.trace.devices.add(deviceName);
+            }
+        }
+        if (deviceName != null) {
+            callsByDevice.put(deviceName, span);
+        }
+        current.get().push(span);
+        return span;
+    }
+
+    /**
+     * Looks up a remote object, in a span if a transaction is open.
+     *
+     * @param url - The object's URL.
+     * @return The remote object.
+     * @throws RemoteException - If the registry could not be reached.
+     * @throws NotBoundException - If nothing is bound to the name.
+     * @throws MalformedURLException - If the URL is not valid.
+     */
+    public Remote lookup(String url) throws RemoteException, NotBoundException, MalformedURLException {
+        Span span = startSpan("lookup");
+        try {
+            return Naming.lookup(url);
+        } finally {
+            if (span != null) {
+                span.setAttribute("url", url).end();
+            }
+        }
+    }
+
+    /**
+     * Wraps a device or system stub so that calls made within a transaction are traced.
+     *
+     * @param iface - The remote interface.
+     * @param stub - The stub.
+     * @param deviceName - The logical device name, used to match device events; null for the system object.
+     * @param <T> - The remote interface type.
+     * @return The traced stub.
+     */
+    public <T extends Remote> T trace(Class<T> iface, final T stub, final String deviceName) {
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(stub, args);
+                }
+
+                Span span = startSpan((deviceName == null ? "system" : deviceName) + "." + method.getName(), deviceName);
+                if (span == null) {
+                    return forward(stub, method, args);
+                }
+
+                try {
+                    return forward(stub, method, args);
+                } catch (Throwable t) {
+                    span.setError(t);
+                    throw t;
+                } finally {
+                    span.end();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Records a device event on the innermost open span of its device; events with no open span are ignored.
+     *
+     * @param event - The event.
+     */
+    public void recordEvent(Event event) {
+        if (event == null || event.getDeviceName() == null) {
+            return;
+        }
+
+        Span span = callsByDevice.get(event.getDeviceName());
+        if (span != null) {
+            span.addEvent(String.valueOf(event.getEventType()));
+        }
+    }
+
+    /**
+     * Exports the traces still pending and closes the trace file.
+     *
+     * @throws InterruptedException - If interrupted waiting for the export.
+     * @throws IOException - If the trace file could not be closed.
+     */
+    public void close() throws InterruptedException, IOException {
+        exporter.shutdown();
+        exporter.awaitTermination(10, TimeUnit.SECONDS);
+        out.close();
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void finish(final Trace trace) {
+        synchronized (trace) {
+            for (String deviceName : trace.devices) {
+                Span last = callsByDevice.get(deviceName);
+                if (last != null && last.trace == trace) {
+                    callsByDevice.remove(deviceName, last);
+                }
+            }
+            if (!trace.sampled && !trace.failed && trace.root.end - trace.root.start < slowNanos) {
+                return;
+            }
+        }
+
+        exporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                export(trace);
+            }
+        });
+    }
+
+    private void export(Trace trace) {
+        try {
+            synchronized (trace) {
+                for (Span span : trace.spans) {
+                    StringBuilder line = new StringBuilder(256);
+                    line.append("{\"trace\":\"").append(Long.toHexString(trace.traceId))
+                            .append("\",\"span\":").append(span.spanId)
+                            .append(",\"parent\":").append(span.parentId)
+                            .append(",\"name\":\"").append(escape(span.name))
+                            .append("\",\"startUs\":").append(TimeUnit.NANOSECONDS.toMicros(span.start - trace.root.start))
+                            .append(",\"durationUs\":").append(span.end == 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(span.end - span.start));
+                    for (Map.Entry<String, String> attribute : span.attributes.entrySet()) {
+                        line.append(",\"").append(escape(attribute.getKey())).append("\":\"")
+                                .append(escape(attribute.getValue())).append('"');
+                    }
+                    if (!span.events.isEmpty()) {
+                        line.append(",\"events\":[");
+                        for (int i = 0; i < span.events.size(); i++) {
+                            line.append(i == 0 ? "\"" : ",\"").append(escape(span.events.get(i))).append('"');
+                        }
+                        line.append(']');
+                    }
+                    out.write(line.append("}\n").toString());
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Unable to export a trace: " + e.getMessage());
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Main.
+     *
+     * @param args - Command line arguments: the trace file, the sample rate and the slow threshold.
+     */
+    public static void main(String[] args) {
+        File traceFile = new File(args.length > 0 ? args[0] : "traces.jsonl");
+        double sampleRate = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_SAMPLE_RATE;
+        long slowMs = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SLOW_MS;
+
+        try {
+            final TransactionTracing tracer = new TransactionTracing(traceFile, sampleRate, slowMs);
+
+            // Record device events on the traced spans, and note when the dispense completes.
+            final CountDownLatch dispenseComplete = new CountDownLatch(1);
+            EnvoyEventListener listener = new EnvoyEventListener();
+            listener.registerHandler(new IEnvoyEventHandler() {
+                @Override
+                public void handleEnvoyEvent(Event evt) {
+                    tracer.recordEvent(evt);
+                    if (evt != null && evt.getEventType() == EventEnum.DISPENSE_COMPLETE) {
+                        dispenseComplete.countDown();
+                    }
+                }
+            });
+
+            Span transaction = tracer.startTransaction("scr.payout");
+            try {
+                IEnvoySystem envoySystem = tracer.trace(IEnvoySystem.class,
+                        (IEnvoySystem) tracer.lookup("//localhost/envoy/system"), null);
+
+                String scrName = null;
+                for (String deviceName : envoySystem.getRegisteredDeviceNames()) {
+                    DeviceInformation deviceInformation = envoySystem.getRegisteredDeviceInformation(deviceName);
+
+                    if (deviceInformation.getDeviceType() == DeviceType.MEI_SCR) {
+                        scrName = deviceName;
+                        break;
+                    }
+                }
+
+                if (scrName == null) {
+                    System.out.println("No registered SCR found.");
+                    System.exit(1);
+                }
+
+                ISCRDevice scr = tracer.trace(ISCRDevice.class,
+                        (ISCRDevice) tracer.lookup(envoySystem.getDevicePath(scrName)), scrName);
+
+                // The dispense completes after dispenseByDenom() returns; its span covers the mechanism time.
+                Span dispense = tracer.startDeviceSpan("scr.dispense", scrName);
+                try {
+                    scr.dispenseByDenom(new EBDSDispenseByDenomPrm(CurCodeEnum.USD.denom(MoneyTypeEnum.BILL, 1), 1));
+                    if (!dispenseComplete.await(DISPENSE_TIMEOUT_S, TimeUnit.SECONDS)) {
+                        dispense.setError(new TimeoutException("No DISPENSE_COMPLETE within " + DISPENSE_TIMEOUT_S + " s."));
+                    }
+                } finally {
+                    dispense.end();
+                }
+            } catch (RemoteException e) {
+                transaction.setError(e);
+                throw e;
+            } finally {
+                transaction.end();
+            }
+
+            tracer.close();
+            System.out.println("Traces written to " + traceFile.getAbsolutePath());
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}